@@ -19,27 +19,85 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.auth.login.Configuration;
 
 /**
+ * Configuration of the Kerberos login module, given to each {@link javax.security.auth.login.LoginContext} rather than
+ * installed JVM-wide, so that logins to several servers neither rely on external config nor interfere.
+ * <p>
+ * Options of the {@code Krb5LoginModule} can be set per server with the {@code kerberos.<option>} settings, for
+ * example {@code ldap.kerberos.refreshKrb5Config=true}: see {@link #OPTIONS}.
+ *
  * @author Evgeny Mandrikov
  */
 public class Krb5LoginConfiguration extends Configuration {
-  private static final AppConfigurationEntry[] CONFIG_LIST = new AppConfigurationEntry[1];
 
-  static {
-    String loginModule = "com.sun.security.auth.module.Krb5LoginModule";
-    AppConfigurationEntry.LoginModuleControlFlag flag = AppConfigurationEntry.LoginModuleControlFlag.REQUIRED;
-    CONFIG_LIST[0] = new AppConfigurationEntry(loginModule, flag, new HashMap<String, Object>());
-  }
+  private static final String LOGIN_MODULE = "com.sun.security.auth.module.Krb5LoginModule";
+
+  /**
+   * Supported options of the {@code Krb5LoginModule}.
+   */
+  static final String[] OPTIONS = {"refreshKrb5Config", "useTicketCache", "ticketCache", "renewTGT", "doNotPrompt", "useKeyTab", "keyTab",
+    "storeKey", "principal", "isInitiator", "debug"};
+
+  // options which do not change whose password is checked
+  private static final Set<String> USER_OPTIONS = new HashSet<>(Arrays.asList("refreshKrb5Config", "debug"));
+
+  private final Map<String, String> options;
+  private final AppConfigurationEntry[] configList = new AppConfigurationEntry[1];
 
   /**
    * Creates a new instance of Krb5LoginConfiguration.
    */
   public Krb5LoginConfiguration() {
+    this(Collections.<String, String>emptyMap());
+  }
+
+  /**
+   * Creates a new instance of Krb5LoginConfiguration with the given options of the login module.
+   */
+  public Krb5LoginConfiguration(Map<String, String> options) {
     super();
+    this.options = Collections.unmodifiableMap(new LinkedHashMap<>(options));
+    AppConfigurationEntry.LoginModuleControlFlag flag = AppConfigurationEntry.LoginModuleControlFlag.REQUIRED;
+    configList[0] = new AppConfigurationEntry(LOGIN_MODULE, flag, new HashMap<String, Object>(this.options));
+  }
+
+  /**
+   * Creates configuration from Sonar settings.
+   */
+  public static Krb5LoginConfiguration fromSettings(org.sonar.api.config.Configuration settings, String settingsPrefix) {
+    Map<String, String> options = new LinkedHashMap<>();
+    for (String option : OPTIONS) {
+      settings.get(settingsPrefix + ".kerberos." + option).ifPresent(value -> options.put(option, value));
+    }
+    return new Krb5LoginConfiguration(options);
+  }
+
+  /**
+   * Configuration to check the password of users, without the options meant for the bind user, like a key tab or a
+   * ticket cache, which would log in someone else.
+   */
+  public Krb5LoginConfiguration forUsers() {
+    Map<String, String> userOptions = new LinkedHashMap<>();
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      if (USER_OPTIONS.contains(option.getKey())) {
+        userOptions.put(option.getKey(), option.getValue());
+      }
+    }
+    return new Krb5LoginConfiguration(userOptions);
+  }
+
+  public Map<String, String> getOptions() {
+    return options;
   }
 
   /**
@@ -48,7 +106,7 @@ public class Krb5LoginConfiguration extends Configuration {
   @Override
   public AppConfigurationEntry[] getAppConfigurationEntry(String applicationName) {
     // We will ignore the applicationName, since we want all apps to use Kerberos V5
-    return CONFIG_LIST.clone();
+    return configList.clone();
   }
 
   /**
@@ -19,13 +19,11 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.Collections;
 import java.util.Map;
 import javax.naming.NamingException;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchResult;
-import javax.security.auth.login.Configuration;
-import javax.security.auth.login.LoginContext;
-import javax.security.auth.login.LoginException;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.api.security.Authenticator;
 import org.sonar.api.utils.log.Logger;
@@ -39,10 +37,23 @@ public class LdapAuthenticator extends Authenticator {
   private static final Logger LOG = Loggers.get(LdapAuthenticator.class);
   private final Map<String, LdapContextFactory> contextFactories;
   private final Map<String, LdapUserMapping> userMappings;
+  private final LdapUserLookup userLookup;
+  private final LdapCredentialCache credentialCache;
 
   public LdapAuthenticator(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings) {
+    this(contextFactories, userMappings, new LdapUserLookup(contextFactories, userMappings, Collections.<String, LdapGroupMapping>emptyMap()));
+  }
+
+  public LdapAuthenticator(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, LdapUserLookup userLookup) {
+    this(contextFactories, userMappings, userLookup, new LdapCredentialCache(0, 0));
+  }
+
+  public LdapAuthenticator(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, LdapUserLookup userLookup,
+    LdapCredentialCache credentialCache) {
     this.contextFactories = contextFactories;
     this.userMappings = userMappings;
+    this.userLookup = userLookup;
+    this.credentialCache = credentialCache;
   }
 
   @Override
@@ -57,6 +68,22 @@ public class LdapAuthenticator extends Authenticator {
    * @return false if specified user cannot be authenticated with specified password on any LDAP server
    */
   public boolean authenticate(String login, String password) {
+    if (StringUtils.isNotEmpty(password)) {
+      for (String ldapKey : userMappings.keySet()) {
+        if (credentialCache.matches(ldapKey, login, password)) {
+          return true;
+        }
+      }
+    }
+    LdapSession session = new LdapSession();
+    try {
+      return authenticate(session, login, password);
+    } finally {
+      session.close();
+    }
+  }
+
+  private boolean authenticate(LdapSession session, String login, String password) {
     for (String ldapKey : userMappings.keySet()) {
       final String principal;
       if (contextFactories.get(ldapKey).isSasl()) {
@@ -64,13 +91,15 @@ public class LdapAuthenticator extends Authenticator {
       } else {
         final SearchResult result;
         try {
-          result = userMappings.get(ldapKey).createSearch(contextFactories.get(ldapKey), login).findUnique();
+          result = userLookup.find(session, ldapKey, login);
         } catch (NamingException e) {
           LOG.debug("User {} not found in server {}: {}", login, ldapKey, e.getMessage());
           continue;
         }
         if (result == null) {
           LOG.debug("User {} not found in {}", login, ldapKey);
+          // e.g. removed from this server while its password was cached
+          credentialCache.invalidate(ldapKey, login);
           continue;
         }
         principal = result.getNameInNamespace();
@@ -82,8 +111,11 @@ public class LdapAuthenticator extends Authenticator {
         passwordValid = checkPasswordUsingBind(principal, password, ldapKey);
       }
       if (passwordValid) {
+        credentialCache.put(ldapKey, login, password);
         return true;
       }
+      credentialCache.invalidate(ldapKey, login);
+      userLookup.forget(ldapKey, login);
     }
     LOG.debug("User {} not found", login);
     return false;
@@ -107,24 +139,7 @@ public class LdapAuthenticator extends Authenticator {
   }
 
   private boolean checkPasswordUsingGssapi(String principal, String password, String ldapKey) {
-    // Use our custom configuration to avoid reliance on external config
-    Configuration.setConfiguration(new Krb5LoginConfiguration());
-    LoginContext lc;
-    try {
-      lc = new LoginContext(getClass().getName(), new CallbackHandlerImpl(principal, password));
-      lc.login();
-    } catch (LoginException e) {
-      // Bad username: Client not found in Kerberos database
-      // Bad password: Integrity check on decrypted field failed
-      LOG.debug("Password not valid for {} in server {}: {}", principal, ldapKey, e.getMessage());
-      return false;
-    }
-    try {
-      lc.logout();
-    } catch (LoginException e) {
-      LOG.warn("Logout fails", e);
-    }
-    return true;
+    return contextFactories.get(ldapKey).getKerberosVerifier().verify(principal, password);
   }
 
 }
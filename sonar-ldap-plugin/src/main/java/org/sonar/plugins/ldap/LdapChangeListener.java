@@ -0,0 +1,368 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.naming.Binding;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.event.EventContext;
+import javax.naming.event.EventDirContext;
+import javax.naming.event.NamespaceChangeListener;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingExceptionEvent;
+import javax.naming.event.ObjectChangeListener;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Listens to the changes of users and groups of a LDAP server on a long-lived connection, and updates the caches of
+ * the plugin as soon as entries change, so that caches can use long TTLs without serving stale credentials or groups.
+ * <ul>
+ *   <li>{@code changeListener.enabled}: false by default</li>
+ *   <li>{@code changeListener.retryInterval}: delay in milliseconds before connecting again once the connection is lost, 30 seconds by default</li>
+ * </ul>
+ * Changes are notified through the persistent search of the server, which does not resume after a reconnection: changes
+ * missed meanwhile are caught up by forgetting all cached entries of the server, and by polling the
+ * {@link LdapGroupIndex} from its high water mark.
+ */
+public class LdapChangeListener {
+
+  private static final Logger LOG = Loggers.get(LdapChangeListener.class);
+
+  private static final long DEFAULT_RETRY_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+  private final String serverKey;
+  private final LdapContextFactory contextFactory;
+  private final LdapUserMapping userMapping;
+  private final LdapGroupMapping groupMapping;
+  private final LdapCredentialCache credentialCache;
+  private final LdapNotFoundCache notFoundCache;
+  private final LdapUserCache userCache;
+  private final LdapGroupCache groupCache;
+  private final LdapGroupIndex groupIndex;
+  private final long retryInterval;
+  private final AtomicLong changes = new AtomicLong();
+  private final AtomicLong reconnections = new AtomicLong();
+
+  private ScheduledExecutorService scheduler;
+  private EventDirContext context;
+  private boolean connectedOnce;
+
+  /**
+   * Constructs listener from Sonar settings.
+   *
+   * @param userMapping users to listen to, if any
+   * @param groupMapping groups to listen to, if any
+   * @param groupIndex index of the groups of the server, if enabled
+   */
+  public LdapChangeListener(Configuration settings, String settingsPrefix, String serverKey, LdapContextFactory contextFactory,
+    @Nullable LdapUserMapping userMapping, @Nullable LdapGroupMapping groupMapping, LdapCredentialCache credentialCache,
+    LdapNotFoundCache notFoundCache, LdapUserCache userCache, LdapGroupCache groupCache, @Nullable LdapGroupIndex groupIndex) {
+    this(serverKey, contextFactory, userMapping, groupMapping, credentialCache, notFoundCache, userCache, groupCache, groupIndex,
+      settings.getLong(settingsPrefix + ".changeListener.retryInterval").orElse(DEFAULT_RETRY_INTERVAL));
+  }
+
+  LdapChangeListener(String serverKey, LdapContextFactory contextFactory, @Nullable LdapUserMapping userMapping, @Nullable LdapGroupMapping groupMapping,
+    LdapCredentialCache credentialCache, LdapNotFoundCache notFoundCache, LdapUserCache userCache, LdapGroupCache groupCache, @Nullable LdapGroupIndex groupIndex,
+    long retryInterval) {
+    this.serverKey = serverKey;
+    this.contextFactory = contextFactory;
+    this.userMapping = userMapping;
+    this.groupMapping = groupMapping;
+    this.credentialCache = credentialCache;
+    this.notFoundCache = notFoundCache;
+    this.userCache = userCache;
+    this.groupCache = groupCache;
+    this.groupIndex = groupIndex;
+    this.retryInterval = retryInterval;
+  }
+
+  /**
+   * Connects in the background, and connects again whenever the connection is lost.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "ldap-change-listener-" + serverKey);
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.execute(this::connect);
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    disconnect();
+  }
+
+  private void connect() {
+    EventDirContext eventContext = null;
+    try {
+      // Without read timeout, which would otherwise expire whenever the directory does not change for a while
+      InitialDirContext initialContext = contextFactory.createListenerContext();
+      try {
+        Object lookup = initialContext.lookup("");
+        if (!(lookup instanceof EventDirContext)) {
+          LOG.warn("Changes of {} can not be listened to: unsupported context {}", serverKey, lookup.getClass().getName());
+          return;
+        }
+        eventContext = (EventDirContext) lookup;
+      } finally {
+        ContextHelper.closeQuietly(initialContext);
+      }
+      if (userMapping != null) {
+        eventContext.addNamingListener(userMapping.getBaseDn(), StringUtils.replace(userMapping.getRequest(), "{0}", "*"),
+          searchControls(userMapping.getLoginAttribute()), new Listener(true));
+      }
+      if (groupMapping != null) {
+        eventContext.addNamingListener(groupMapping.getBaseDn(), groupMapping.getAllGroupsRequest(),
+          searchControls(groupMapping.getIdAttribute(), groupMapping.getIndexMemberAttribute(), groupMapping.getIndexChangeAttribute()),
+          new Listener(false));
+      }
+    } catch (NamingException | RuntimeException e) {
+      LOG.warn("Unable to listen to changes of {}, trying again in {} ms: {}", serverKey, retryInterval, e.getMessage());
+      ContextHelper.closeQuietly(eventContext);
+      scheduleConnect();
+      return;
+    }
+    boolean reconnected;
+    synchronized (this) {
+      context = eventContext;
+      reconnected = connectedOnce;
+      connectedOnce = true;
+    }
+    LOG.info("Listening to changes of {}", serverKey);
+    if (reconnected) {
+      reconnections.incrementAndGet();
+      catchUp();
+    }
+  }
+
+  private static SearchControls searchControls(String... attributes) {
+    List<String> returning = new ArrayList<>();
+    for (String attribute : attributes) {
+      if (attribute != null) {
+        returning.add(attribute);
+      }
+    }
+    SearchControls controls = new SearchControls();
+    controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    controls.setReturningAttributes(returning.toArray(new String[0]));
+    return controls;
+  }
+
+  private synchronized void scheduleConnect() {
+    if (scheduler != null) {
+      scheduler.schedule(this::connect, retryInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized void disconnect() {
+    if (context != null) {
+      ContextHelper.closeQuietly(context);
+      context = null;
+    }
+  }
+
+  /**
+   * Changes notified while the connection was lost are not known.
+   */
+  private void catchUp() {
+    credentialCache.invalidateAll();
+    notFoundCache.invalidateAll();
+    userCache.invalidateAll();
+    groupCache.invalidateAll();
+    if (groupIndex != null) {
+      try {
+        groupIndex.poll();
+      } catch (NamingException | RuntimeException e) {
+        LOG.warn("Unable to poll changes of groups of {}: {}", serverKey, e.getMessage());
+      }
+    }
+  }
+
+  private void onConnectionLost(EventContext source, NamingException e) {
+    synchronized (this) {
+      if (source != context) {
+        // already handled, e.g. for the other listener of the same connection
+        return;
+      }
+      disconnect();
+    }
+    LOG.warn("Connection to {} lost, changes are not listened to until it is connected again: {}", serverKey, e.getMessage());
+    scheduleConnect();
+  }
+
+  /**
+   * Forgets the credentials, entry and groups cached for a changed user.
+   */
+  void onUserChanged(@Nullable Binding oldEntry, @Nullable Binding newEntry) {
+    changes.incrementAndGet();
+    if (!(oldEntry instanceof SearchResult) && !(newEntry instanceof SearchResult)) {
+      credentialCache.invalidateAll();
+      notFoundCache.invalidateAll();
+      userCache.invalidateAll();
+      groupCache.invalidateAll();
+      return;
+    }
+    for (Binding entry : new Binding[] {oldEntry, newEntry}) {
+      if (entry instanceof SearchResult) {
+        forgetUser((SearchResult) entry);
+      }
+    }
+  }
+
+  private void forgetUser(SearchResult user) {
+    groupCache.invalidate(serverKey, user.getNameInNamespace());
+    String login = getLogin(user);
+    if (login == null) {
+      credentialCache.invalidateAll();
+      notFoundCache.invalidateAll();
+      userCache.invalidateAll();
+    } else {
+      credentialCache.invalidate(serverKey, login);
+      notFoundCache.invalidate(serverKey, login);
+      userCache.invalidate(serverKey, login);
+    }
+  }
+
+  @CheckForNull
+  private String getLogin(SearchResult user) {
+    String loginAttribute = userMapping == null ? null : userMapping.getLoginAttribute();
+    if (loginAttribute == null) {
+      return null;
+    }
+    try {
+      Attribute login = user.getAttributes().get(loginAttribute);
+      return login == null ? null : (String) login.get();
+    } catch (NamingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Updates the group index with a changed group. Previous members of the group are not known, so groups of all users
+   * are forgotten.
+   */
+  void onGroupChanged(@Nullable Binding oldEntry, @Nullable Binding newEntry) {
+    changes.incrementAndGet();
+    groupCache.invalidateAll();
+    if (groupIndex == null) {
+      return;
+    }
+    try {
+      boolean moved = oldEntry instanceof SearchResult
+        && (newEntry == null || !((SearchResult) oldEntry).getNameInNamespace().equalsIgnoreCase(((SearchResult) newEntry).getNameInNamespace()));
+      if (moved) {
+        groupIndex.applyChange(withoutMembers((SearchResult) oldEntry));
+      }
+      if (newEntry instanceof SearchResult) {
+        groupIndex.applyChange((SearchResult) newEntry);
+      }
+    } catch (NamingException | RuntimeException e) {
+      // caught up by the next poll
+      LOG.debug("Unable to apply change of group to index of {}: {}", serverKey, e.getMessage());
+    }
+  }
+
+  private SearchResult withoutMembers(SearchResult group) {
+    Attributes attributes = (Attributes) group.getAttributes().clone();
+    attributes.remove(groupMapping.getIndexMemberAttribute());
+    SearchResult removed = new SearchResult(group.getName(), null, attributes);
+    removed.setNameInNamespace(group.getNameInNamespace());
+    return removed;
+  }
+
+  public synchronized boolean isListening() {
+    return context != null;
+  }
+
+  /**
+   * @return number of changes of users and groups notified
+   */
+  public long getChanges() {
+    return changes.get();
+  }
+
+  public long getReconnections() {
+    return reconnections.get();
+  }
+
+  private final class Listener implements NamespaceChangeListener, ObjectChangeListener {
+    private final boolean users;
+
+    private Listener(boolean users) {
+      this.users = users;
+    }
+
+    @Override
+    public void objectAdded(NamingEvent event) {
+      onChange(null, event.getNewBinding());
+    }
+
+    @Override
+    public void objectRemoved(NamingEvent event) {
+      onChange(event.getOldBinding(), null);
+    }
+
+    @Override
+    public void objectRenamed(NamingEvent event) {
+      onChange(event.getOldBinding(), event.getNewBinding());
+    }
+
+    @Override
+    public void objectChanged(NamingEvent event) {
+      onChange(event.getOldBinding(), event.getNewBinding());
+    }
+
+    private void onChange(@Nullable Binding oldEntry, @Nullable Binding newEntry) {
+      if (users) {
+        onUserChanged(oldEntry, newEntry);
+      } else {
+        onGroupChanged(oldEntry, newEntry);
+      }
+    }
+
+    @Override
+    public void namingExceptionThrown(NamingExceptionEvent event) {
+      onConnectionLost(event.getEventContext(), event.getException());
+    }
+  }
+
+}
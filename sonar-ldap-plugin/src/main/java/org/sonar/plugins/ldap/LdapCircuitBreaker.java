@@ -0,0 +1,220 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.InitialDirContext;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Stops connecting to a LDAP server which is down, so that logins go to the next server at once instead of waiting
+ * for the connection timeout.
+ * <p>
+ * The circuit opens after {@code circuitBreaker.failureThreshold} consecutive connection failures (5 by default, 0 to
+ * disable). While open, connections are refused immediately, and every {@code circuitBreaker.probeInterval}
+ * milliseconds (30 seconds by default) a connection is attempted in the background: the circuit is half-open during
+ * this attempt, and closes as soon as one succeeds.
+ */
+public class LdapCircuitBreaker {
+
+  private static final Logger LOG = Loggers.get(LdapCircuitBreaker.class);
+
+  private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  private static final long DEFAULT_PROBE_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String name;
+  private final LdapConnectionPool.Connector connector;
+  private final int failureThreshold;
+  private final long probeInterval;
+  private final AtomicLong openings = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private ScheduledThreadPoolExecutor prober;
+
+  /**
+   * Constructs circuit breaker from Sonar settings.
+   *
+   * @param connector opens a connection to the server, used to probe it while the circuit is open
+   */
+  public LdapCircuitBreaker(Configuration settings, String settingsPrefix, String name, LdapConnectionPool.Connector connector) {
+    this(name, connector,
+      settings.getInt(settingsPrefix + ".circuitBreaker.failureThreshold").orElse(DEFAULT_FAILURE_THRESHOLD),
+      settings.getLong(settingsPrefix + ".circuitBreaker.probeInterval").orElse(DEFAULT_PROBE_INTERVAL));
+  }
+
+  LdapCircuitBreaker(String name, LdapConnectionPool.Connector connector, int failureThreshold, long probeInterval) {
+    this.name = name;
+    this.connector = connector;
+    this.failureThreshold = failureThreshold;
+    this.probeInterval = probeInterval;
+  }
+
+  /**
+   * @return circuit breaker of another server, configured like this one
+   */
+  LdapCircuitBreaker copy(String otherName, LdapConnectionPool.Connector otherConnector) {
+    return new LdapCircuitBreaker(otherName, otherConnector, failureThreshold, probeInterval);
+  }
+
+  public boolean isEnabled() {
+    return failureThreshold > 0;
+  }
+
+  /**
+   * @throws ServiceUnavailableException if the circuit is not closed
+   */
+  public void checkAvailable() throws ServiceUnavailableException {
+    State current = getState();
+    if (current != State.CLOSED) {
+      rejections.incrementAndGet();
+      throw new ServiceUnavailableException("LDAP server " + name + " is unavailable: circuit breaker is " + current);
+    }
+  }
+
+  /**
+   * Records that a connection to the server could be opened.
+   */
+  public synchronized void onSuccess() {
+    consecutiveFailures = 0;
+    if (state != State.CLOSED) {
+      LOG.info("LDAP server {} is available again, circuit breaker closed", name);
+      state = State.CLOSED;
+      stopProbing();
+    }
+  }
+
+  /**
+   * Records the outcome of a failed connection. Only failures to reach the server or the KDC count, not e.g. rejected
+   * credentials. As other failures do not tell whether the server is reachable, they leave the count of consecutive
+   * failures unchanged.
+   */
+  public synchronized void onFailure(NamingException e) {
+    if (!isEnabled() || !isConnectionFailure(e)) {
+      return;
+    }
+    consecutiveFailures++;
+    if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+      LOG.warn("LDAP server {} is unavailable after {} consecutive connection failures, circuit breaker opened: {}", name, consecutiveFailures, e.getMessage());
+      state = State.OPEN;
+      openings.incrementAndGet();
+      startProbing();
+    }
+  }
+
+  /**
+   * Looks at the whole chain of causes, as failures of StartTLS and GSSAPI wrap the original exception.
+   */
+  static boolean isConnectionFailure(NamingException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      // IOException covers unreachable KDCs and failed TLS handshakes
+      if (cause instanceof CommunicationException || cause instanceof ServiceUnavailableException || cause instanceof IOException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void startProbing() {
+    if (prober == null) {
+      prober = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "ldap-circuit-breaker-" + name);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    prober.scheduleWithFixedDelay(this::probe, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private void stopProbing() {
+    if (prober != null) {
+      prober.shutdownNow();
+      prober = null;
+    }
+  }
+
+  private void probe() {
+    synchronized (this) {
+      if (state != State.OPEN) {
+        return;
+      }
+      state = State.HALF_OPEN;
+    }
+    LOG.debug("Probing LDAP server {}", name);
+    InitialDirContext context = null;
+    try {
+      context = connector.connect();
+      onSuccess();
+    } catch (NamingException | RuntimeException e) {
+      LOG.debug("LDAP server {} is still unavailable: {}", name, e.getMessage());
+      synchronized (this) {
+        if (state == State.HALF_OPEN) {
+          state = State.OPEN;
+        }
+      }
+    } finally {
+      ContextHelper.closeQuietly(context);
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * @return number of times the circuit opened
+   */
+  public long getOpenings() {
+    return openings.get();
+  }
+
+  /**
+   * @return number of connections refused while the circuit was not closed
+   */
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" +
+      "failureThreshold=" + failureThreshold +
+      ", probeInterval=" + probeInterval +
+      "}";
+  }
+
+}
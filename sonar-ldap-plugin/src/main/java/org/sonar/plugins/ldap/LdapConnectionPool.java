@@ -0,0 +1,409 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.InitialDirContext;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Pool of bind contexts owned by the plugin, one per LDAP server.
+ * Contexts are handed out already connected and bound, are validated on borrow and are evicted once idle for too long.
+ * Unlike the JNDI pool, it is configured per server and is able to pool StartTLS connections.
+ * <ul>
+ *   <li>{@code maxSize}: maximum number of contexts, borrowed or idle</li>
+ *   <li>{@code prefSize}: maximum number of contexts kept once released, exceeding ones are closed</li>
+ *   <li>{@code minSize}: number of idle contexts which are never evicted</li>
+ *   <li>{@code idleTimeout}: time in milliseconds after which an idle context is evicted, 0 to disable</li>
+ *   <li>{@code borrowTimeout}: time in milliseconds to wait for a context when all are borrowed, 0 to fail immediately</li>
+ * </ul>
+ * Waiting borrowers are served in arrival order.
+ * <p>
+ * The pool can be drained, warmed and reset at runtime, e.g. through {@link LdapServerMXBean}.
+ */
+public class LdapConnectionPool {
+
+  private static final Logger LOG = Loggers.get(LdapConnectionPool.class);
+
+  private static final int DEFAULT_MIN_SIZE = 0;
+  private static final int DEFAULT_MAX_SIZE = 10;
+  private static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+  private static final long DEFAULT_BORROW_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+  /**
+   * Opens a new bind context, ready to be used for searches.
+   */
+  public interface Connector {
+    InitialDirContext connect() throws NamingException;
+  }
+
+  private final String name;
+  private final Connector connector;
+  private final int minSize;
+  private final int maxSize;
+  private final int prefSize;
+  private final long idleTimeout;
+  private final long borrowTimeout;
+  private final Semaphore permits;
+
+  // Most recently released contexts are at the head, so that the tail holds the ones idle for the longest time
+  private final Deque<IdleContext> idle = new ArrayDeque<>();
+  private final Set<InitialDirContext> borrowed = Collections.newSetFromMap(new IdentityHashMap<InitialDirContext, Boolean>());
+  // Borrowed when the pool was drained, so closed instead of being kept once released
+  private final Set<InitialDirContext> retired = Collections.newSetFromMap(new IdentityHashMap<InitialDirContext, Boolean>());
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong destroyed = new AtomicLong();
+  // in microseconds
+  private final LdapHistogram connectTimes = new LdapHistogram();
+
+  /**
+   * Constructs pool from Sonar settings.
+   */
+  public LdapConnectionPool(Configuration settings, String settingsPrefix, String name, Connector connector) {
+    this(name, connector,
+      settings.getInt(settingsPrefix + ".pool.minSize").orElse(DEFAULT_MIN_SIZE),
+      settings.getInt(settingsPrefix + ".pool.prefSize").orElse(null),
+      settings.getInt(settingsPrefix + ".pool.maxSize").orElse(DEFAULT_MAX_SIZE),
+      settings.getLong(settingsPrefix + ".pool.idleTimeout").orElse(DEFAULT_IDLE_TIMEOUT),
+      settings.getLong(settingsPrefix + ".pool.borrowTimeout").orElse(DEFAULT_BORROW_TIMEOUT));
+  }
+
+  LdapConnectionPool(String name, Connector connector, int minSize, @Nullable Integer prefSize, int maxSize, long idleTimeout, long borrowTimeout) {
+    int pref = prefSize == null ? maxSize : prefSize;
+    if (maxSize < 1 || minSize < 0 || minSize > pref || pref > maxSize) {
+      throw new IllegalArgumentException("Invalid LDAP pool size for " + name + ": min=" + minSize + ", pref=" + pref + ", max=" + maxSize);
+    }
+    this.name = name;
+    this.connector = connector;
+    this.minSize = minSize;
+    this.prefSize = pref;
+    this.maxSize = maxSize;
+    this.idleTimeout = idleTimeout;
+    this.borrowTimeout = borrowTimeout;
+    // Fair, so that threads waiting for a context are not starved by newcomers
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * @return empty pool of another server, configured like this one
+   */
+  LdapConnectionPool copy(String otherName, Connector otherConnector) {
+    return new LdapConnectionPool(otherName, otherConnector, minSize, prefSize, maxSize, idleTimeout, borrowTimeout);
+  }
+
+  /**
+   * Returns a valid bind context, either an idle one or a newly opened one.
+   * Waits up to {@link #getBorrowTimeout()} while {@link #getMaxSize()} contexts are already borrowed.
+   *
+   * @throws ServiceUnavailableException if the pool is exhausted
+   * @throws NamingException if unable to open a new context
+   */
+  public InitialDirContext borrow() throws NamingException {
+    try {
+      if (!permits.tryAcquire(Math.max(borrowTimeout, 0), TimeUnit.MILLISECONDS)) {
+        throw new ServiceUnavailableException("LDAP connection pool exhausted for " + name + ": all " + maxSize + " connections are in use");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedNamingException ex = new InterruptedNamingException("Interrupted while waiting for an LDAP connection to " + name);
+      ex.initCause(e);
+      throw ex;
+    }
+    boolean acquired = false;
+    try {
+      InitialDirContext context = pollValidContext();
+      if (context == null) {
+        LOG.debug("Opening new pooled LDAP connection to {}", name);
+        context = open();
+      }
+      synchronized (this) {
+        borrowed.add(context);
+      }
+      acquired = true;
+      return context;
+    } finally {
+      if (!acquired) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Gives back a context previously obtained from {@link #borrow()}, so that it can be reused.
+   */
+  public void release(InitialDirContext context) {
+    boolean kept;
+    synchronized (this) {
+      if (!borrowed.remove(context)) {
+        return;
+      }
+      kept = !retired.remove(context) && idle.size() + borrowed.size() < prefSize;
+      if (kept) {
+        idle.addFirst(new IdleContext(context, System.nanoTime()));
+      }
+    }
+    permits.release();
+    if (!kept) {
+      LOG.debug("Closing LDAP connection to {} exceeding preferred pool size or drained", name);
+      destroy(context);
+    }
+    evictIdleContexts();
+  }
+
+  /**
+   * Closes a context previously obtained from {@link #borrow()}, which must not be reused (e.g. broken connection).
+   */
+  public void invalidate(InitialDirContext context) {
+    synchronized (this) {
+      if (!borrowed.remove(context)) {
+        return;
+      }
+      retired.remove(context);
+    }
+    permits.release();
+    destroy(context);
+  }
+
+  /**
+   * Opens contexts until the pool holds at least {@link #getMinSize()} of them.
+   *
+   * @throws NamingException if unable to open a new context
+   */
+  public void fill() throws NamingException {
+    warm(minSize);
+  }
+
+  /**
+   * Opens contexts until the pool holds at least the given number of them, up to {@link #getPrefSize()}.
+   *
+   * @return number of opened contexts
+   * @throws NamingException if unable to open a new context
+   */
+  public int warm(int size) throws NamingException {
+    int target = Math.min(size, prefSize);
+    int opened = 0;
+    while (true) {
+      synchronized (this) {
+        if (idle.size() + borrowed.size() >= target) {
+          return opened;
+        }
+      }
+      InitialDirContext context = open();
+      opened++;
+      synchronized (this) {
+        idle.addLast(new IdleContext(context, System.nanoTime()));
+      }
+    }
+  }
+
+  /**
+   * Closes all idle contexts. Borrowed contexts are closed when they are released.
+   */
+  public void close() {
+    drain();
+  }
+
+  /**
+   * Closes all idle contexts, and the borrowed ones once released, so that following borrowers get new connections,
+   * e.g. after a failover of the server.
+   *
+   * @return number of contexts closed at once
+   */
+  public int drain() {
+    List<IdleContext> toClose;
+    synchronized (this) {
+      toClose = new ArrayList<>(idle);
+      idle.clear();
+      retired.addAll(borrowed);
+    }
+    for (IdleContext idleContext : toClose) {
+      destroy(idleContext.context);
+    }
+    return toClose.size();
+  }
+
+  /**
+   * Drains the pool, forgets its statistics, and opens {@link #getMinSize()} contexts again.
+   *
+   * @throws NamingException if unable to open a new context
+   */
+  public void reset() throws NamingException {
+    drain();
+    created.set(0);
+    destroyed.set(0);
+    connectTimes.reset();
+    fill();
+  }
+
+  private InitialDirContext open() throws NamingException {
+    long start = System.nanoTime();
+    InitialDirContext context = connector.connect();
+    connectTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    created.incrementAndGet();
+    return context;
+  }
+
+  private void destroy(InitialDirContext context) {
+    destroyed.incrementAndGet();
+    ContextHelper.closeQuietly(context);
+  }
+
+  private InitialDirContext pollValidContext() {
+    evictIdleContexts();
+    IdleContext idleContext;
+    while ((idleContext = pollIdleContext()) != null) {
+      if (isValid(idleContext.context)) {
+        return idleContext.context;
+      }
+      destroy(idleContext.context);
+    }
+    return null;
+  }
+
+  private synchronized IdleContext pollIdleContext() {
+    return idle.pollFirst();
+  }
+
+  private boolean isValid(InitialDirContext context) {
+    try {
+      // Reads no attribute ("1.1") of the base entry, which is the cheapest operation available to check the connection
+      context.getAttributes("", new String[] {"1.1"});
+      return true;
+    } catch (NamingException e) {
+      LOG.debug("Discarding pooled LDAP connection to {}: {}", name, e.getMessage());
+      return false;
+    }
+  }
+
+  private void evictIdleContexts() {
+    if (idleTimeout <= 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    List<IdleContext> evicted = new ArrayList<>();
+    synchronized (this) {
+      Iterator<IdleContext> it = idle.descendingIterator();
+      while (it.hasNext() && idle.size() + borrowed.size() > minSize) {
+        IdleContext idleContext = it.next();
+        if (TimeUnit.NANOSECONDS.toMillis(now - idleContext.since) < idleTimeout) {
+          break;
+        }
+        it.remove();
+        evicted.add(idleContext);
+      }
+    }
+    for (IdleContext idleContext : evicted) {
+      LOG.debug("Closing idle LDAP connection to {}", name);
+      destroy(idleContext.context);
+    }
+  }
+
+  public int getMinSize() {
+    return minSize;
+  }
+
+  public int getPrefSize() {
+    return prefSize;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  public long getBorrowTimeout() {
+    return borrowTimeout;
+  }
+
+  public int getPendingCount() {
+    return permits.getQueueLength();
+  }
+
+  public synchronized int getIdleCount() {
+    return idle.size();
+  }
+
+  public synchronized int getActiveCount() {
+    return borrowed.size();
+  }
+
+  /**
+   * @return number of contexts opened by the pool
+   */
+  public long getCreatedCount() {
+    return created.get();
+  }
+
+  /**
+   * @return number of contexts closed by the pool, e.g. broken, idle for too long or drained
+   */
+  public long getDestroyedCount() {
+    return destroyed.get();
+  }
+
+  /**
+   * @return time in microseconds taken to open contexts of the pool, including StartTLS and bind
+   */
+  public LdapHistogram getConnectTimes() {
+    return connectTimes;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" +
+      "name=" + name +
+      ", minSize=" + minSize +
+      ", prefSize=" + prefSize +
+      ", maxSize=" + maxSize +
+      ", idleTimeout=" + idleTimeout +
+      ", borrowTimeout=" + borrowTimeout +
+      "}";
+  }
+
+  private static final class IdleContext {
+    private final InitialDirContext context;
+    private final long since;
+
+    private IdleContext(InitialDirContext context, long since) {
+      this.context = context;
+      this.since = since;
+    }
+  }
+
+}
@@ -22,8 +22,12 @@ package org.sonar.plugins.ldap;
 import java.io.IOException;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
+import javax.naming.AuthenticationException;
 import javax.naming.Context;
 import javax.naming.NamingException;
 import javax.naming.directory.InitialDirContext;
@@ -31,7 +35,6 @@ import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.StartTlsRequest;
 import javax.naming.ldap.StartTlsResponse;
 import javax.security.auth.Subject;
-import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.api.config.Configuration;
@@ -57,13 +60,13 @@ public class LdapContextFactory {
   private static final String DEFAULT_AUTHENTICATION = AUTH_METHOD_SIMPLE;
   private static final String DEFAULT_FACTORY = "com.sun.jndi.ldap.LdapCtxFactory";
 
-  /**
-   * The Sun LDAP property used to enable connection pooling. This is used in the default implementation to enable
-   * LDAP connection pooling.
-   */
-  private static final String SUN_CONNECTION_POOLING_PROPERTY = "com.sun.jndi.ldap.connect.pool";
-
   private static final String SASL_REALM_PROPERTY = "java.naming.security.sasl.realm";
+  private static final String CONNECT_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.connect.timeout";
+  private static final String READ_TIMEOUT_PROPERTY = "com.sun.jndi.ldap.read.timeout";
+
+  private static final int DEFAULT_CONNECT_TIMEOUT = 10_000;
+  private static final int DEFAULT_READ_TIMEOUT = 60_000;
+  private static final int DEFAULT_SEARCH_TIME_LIMIT = 30_000;
 
   private final String providerUrl;
   private final boolean startTLS;
@@ -73,8 +76,19 @@ public class LdapContextFactory {
   private final String password;
   private final String realm;
   private final String referral;
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final int searchTimeLimit;
+  private final LdapConnectionPool pool;
+  private final LdapHedging hedging;
+  private final LdapCircuitBreaker circuitBreaker;
+  private final Krb5LoginConfiguration kerberosConfiguration;
+  private final LdapKerberosSubject kerberosSubject;
+  private final LdapKerberosVerifier kerberosVerifier;
+  private final LdapMetrics metrics;
 
   public LdapContextFactory(Configuration settings, String settingsPrefix, String ldapUrl) {
+    this.metrics = new LdapMetrics();
     this.authentication = settings.get(settingsPrefix + ".authentication").orElse(DEFAULT_AUTHENTICATION);
     this.factory = settings.get(settingsPrefix + ".contextFactoryClass").orElse(DEFAULT_FACTORY);
     this.realm = settings.get(settingsPrefix + ".realm").orElse(null);
@@ -83,45 +97,157 @@ public class LdapContextFactory {
     this.username = settings.get(settingsPrefix + ".bindDn").orElse(null);
     this.password = settings.get(settingsPrefix + ".bindPassword").orElse(null);
     this.referral = getReferralsMode(settings, settingsPrefix + ".followReferrals");
+    this.connectTimeout = settings.getInt(settingsPrefix + ".connectTimeout").orElse(DEFAULT_CONNECT_TIMEOUT);
+    this.readTimeout = settings.getInt(settingsPrefix + ".readTimeout").orElse(DEFAULT_READ_TIMEOUT);
+    this.searchTimeLimit = settings.getInt(settingsPrefix + ".searchTimeLimit").orElse(DEFAULT_SEARCH_TIME_LIMIT);
+    this.kerberosConfiguration = Krb5LoginConfiguration.fromSettings(settings, settingsPrefix);
+    this.kerberosSubject = isGssapi() ? new LdapKerberosSubject(ldapUrl, username, password, kerberosConfiguration) : null;
+    this.kerberosVerifier = isGssapi() ? new LdapKerberosVerifier(settings, settingsPrefix, ldapUrl, kerberosConfiguration.forUsers(), this.metrics) : null;
+    this.circuitBreaker = new LdapCircuitBreaker(settings, settingsPrefix, ldapUrl, () -> openBindContext(readTimeout));
+    if (settings.getBoolean(settingsPrefix + ".pool.enabled").orElse(true)) {
+      // Bind contexts are pooled by the plugin rather than by JNDI, whose pool is configured by JVM-wide system properties
+      // and is not able to pool StartTLS connections
+      this.pool = new LdapConnectionPool(settings, settingsPrefix, ldapUrl, this::createBindContext);
+    } else {
+      this.pool = null;
+    }
+    List<LdapContextFactory> replicas = new ArrayList<>();
+    for (String replicaUrl : settings.getStringArray(settingsPrefix + ".hedge.urls")) {
+      if (StringUtils.isNotBlank(replicaUrl)) {
+        replicas.add(new LdapContextFactory(this, replicaUrl.trim()));
+      }
+    }
+    this.hedging = replicas.isEmpty() ? null : new LdapHedging(settings, settingsPrefix, ldapUrl, replicas);
+  }
+
+  /**
+   * Constructs a replica of the given server, which only differs by its URL. It shares the metrics and the Kerberos
+   * credentials of the server, and has its own circuit breaker and pool, configured like the ones of the server, since
+   * they hold the state of the connections to its URL. Neither opens connections nor starts threads until used.
+   */
+  private LdapContextFactory(LdapContextFactory server, String replicaUrl) {
+    this.metrics = server.metrics;
+    this.authentication = server.authentication;
+    this.factory = server.factory;
+    this.realm = server.realm;
+    this.providerUrl = replicaUrl;
+    this.startTLS = server.startTLS;
+    this.username = server.username;
+    this.password = server.password;
+    this.referral = server.referral;
+    this.connectTimeout = server.connectTimeout;
+    this.readTimeout = server.readTimeout;
+    this.searchTimeLimit = server.searchTimeLimit;
+    this.kerberosConfiguration = server.kerberosConfiguration;
+    this.kerberosSubject = server.kerberosSubject;
+    this.kerberosVerifier = server.kerberosVerifier;
+    this.circuitBreaker = server.circuitBreaker.copy(replicaUrl, () -> openBindContext(readTimeout));
+    this.pool = server.pool == null ? null : server.pool.copy(replicaUrl, this::createBindContext);
+    this.hedging = null;
   }
 
   /**
    * Returns {@code InitialDirContext} for Bind user.
+   *
+   * @throws javax.naming.ServiceUnavailableException if the server is considered down by its {@link LdapCircuitBreaker}
    */
   public InitialDirContext createBindContext() throws NamingException {
+    return connect(LdapMetrics.Operation.BIND, () -> openBindContext(readTimeout));
+  }
+
+  /**
+   * Returns {@code InitialDirContext} for Bind user without read timeout, for persistent searches which wait for
+   * changes of the directory for as long as needed. Such context is never pooled.
+   *
+   * @throws javax.naming.ServiceUnavailableException if the server is considered down by its {@link LdapCircuitBreaker}
+   */
+  public InitialDirContext createListenerContext() throws NamingException {
+    return connect(LdapMetrics.Operation.BIND, () -> openBindContext(0));
+  }
+
+  /**
+   * @param readTimeoutMillis read timeout, 0 for none
+   */
+  private InitialDirContext openBindContext(int readTimeoutMillis) throws NamingException {
     if (isGssapi()) {
-      return createInitialDirContextUsingGssapi(username, password);
+      return createInitialDirContextUsingGssapi(readTimeoutMillis);
     } else {
-      return createInitialDirContext(username, password, true);
+      return createInitialDirContext(username, password, readTimeoutMillis);
+    }
+  }
+
+  /**
+   * Returns {@code InitialDirContext} for Bind user, taken from the pool of the plugin unless pooling is disabled.
+   * Such context must be given back using {@link #releaseBindContext(InitialDirContext)}.
+   */
+  public InitialDirContext borrowBindContext() throws NamingException {
+    if (pool != null) {
+      return pool.borrow();
+    }
+    return createBindContext();
+  }
+
+  /**
+   * Gives back a context obtained from {@link #borrowBindContext()}.
+   *
+   * @param broken true if the connection must not be reused
+   */
+  public void releaseBindContext(InitialDirContext context, boolean broken) {
+    if (pool == null) {
+      ContextHelper.closeQuietly(context);
+    } else if (broken) {
+      pool.invalidate(context);
+    } else {
+      pool.release(context);
     }
   }
 
   /**
    * Returns {@code InitialDirContext} for specified user.
-   * Note that pooling intentionally disabled by this method.
+   * Note that such context is never pooled.
+   *
+   * @throws javax.naming.ServiceUnavailableException if the server is considered down by its {@link LdapCircuitBreaker}
    */
   public InitialDirContext createUserContext(String principal, String credentials) throws NamingException {
-    return createInitialDirContext(principal, credentials, false);
+    return connect(LdapMetrics.Operation.USER_BIND, () -> createInitialDirContext(principal, credentials, readTimeout));
   }
 
-  private InitialDirContext createInitialDirContext(String principal, String credentials, boolean pooling) throws NamingException {
+  private InitialDirContext connect(LdapMetrics.Operation operation, LdapConnectionPool.Connector connector) throws NamingException {
+    circuitBreaker.checkAvailable();
+    long start = System.nanoTime();
+    InitialDirContext context;
+    try {
+      context = connector.connect();
+    } catch (NamingException e) {
+      metrics.recordFailure(operation, start, e);
+      circuitBreaker.onFailure(e);
+      throw e;
+    }
+    metrics.record(operation, LdapMetrics.Outcome.SUCCESS, start, -1);
+    circuitBreaker.onSuccess();
+    return context;
+  }
+
+  private InitialDirContext createInitialDirContext(String principal, String credentials, int readTimeoutMillis) throws NamingException {
     final InitialLdapContext ctx;
     if (startTLS) {
-      // Note that pooling is not enabled for such connections, because "Stop TLS" is not performed.
       Properties env = new Properties();
       env.put(Context.INITIAL_CONTEXT_FACTORY, factory);
       env.put(Context.PROVIDER_URL, providerUrl);
       env.put(Context.REFERRAL, referral);
+      putTimeouts(env, readTimeoutMillis);
       // At this point env should not contain properties SECURITY_AUTHENTICATION, SECURITY_PRINCIPAL and SECURITY_CREDENTIALS to avoid
       // "bind" operation prior to StartTLS:
       ctx = new InitialLdapContext(env, null);
       // http://docs.oracle.com/javase/jndi/tutorial/ldap/ext/starttls.html
+      long start = System.nanoTime();
       StartTlsResponse tls = (StartTlsResponse) ctx.extendedOperation(new StartTlsRequest());
       try {
         tls.negotiate();
+        metrics.recordTlsHandshake(start);
       } catch (IOException e) {
         NamingException ex = new NamingException("StartTLS failed");
-        ex.initCause(e);
+        ex.setRootCause(e);
         throw ex;
       }
       // Explicitly initiate "bind" operation:
@@ -134,48 +260,48 @@ public class LdapContextFactory {
       }
       ctx.reconnect(null);
     } else {
-      ctx = new InitialLdapContext(getEnvironment(principal, credentials, pooling), null);
+      ctx = new InitialLdapContext(getEnvironment(principal, credentials, readTimeoutMillis), null);
     }
     return ctx;
   }
 
-  private InitialDirContext createInitialDirContextUsingGssapi(String principal, String credentials) throws NamingException {
-    javax.security.auth.login.Configuration.setConfiguration(new Krb5LoginConfiguration());
+  private InitialDirContext createInitialDirContextUsingGssapi(final int readTimeoutMillis) throws NamingException {
     InitialDirContext initialDirContext;
     try {
-      LoginContext lc = new LoginContext(getClass().getName(), new CallbackHandlerImpl(principal, credentials));
-      lc.login();
-      initialDirContext = Subject.doAs(lc.getSubject(), new PrivilegedExceptionAction<InitialDirContext>() {
+      initialDirContext = Subject.doAs(kerberosSubject.getSubject(), new PrivilegedExceptionAction<InitialDirContext>() {
         @Override
         public InitialDirContext run() throws NamingException {
           Properties env = new Properties();
           env.put(Context.INITIAL_CONTEXT_FACTORY, factory);
           env.put(Context.PROVIDER_URL, providerUrl);
           env.put(Context.REFERRAL, referral);
+          putTimeouts(env, readTimeoutMillis);
           return new InitialLdapContext(env, null);
         }
       });
     } catch (LoginException | PrivilegedActionException e) {
+      if (e instanceof PrivilegedActionException && e.getCause() instanceof AuthenticationException) {
+        // e.g. expired or revoked ticket
+        kerberosSubject.invalidate();
+      }
       NamingException namingException = new NamingException(e.getMessage());
-      namingException.initCause(e);
+      // the original exception, so that LdapCircuitBreaker is able to tell connection failures
+      namingException.setRootCause(e instanceof PrivilegedActionException ? e.getCause() : e);
       throw namingException;
     }
     return initialDirContext;
   }
 
-  private Properties getEnvironment(@Nullable String principal, @Nullable String credentials, boolean pooling) {
+  private Properties getEnvironment(@Nullable String principal, @Nullable String credentials, int readTimeoutMillis) {
     Properties env = new Properties();
     env.put(Context.SECURITY_AUTHENTICATION, authentication);
     if (realm != null) {
       env.put(SASL_REALM_PROPERTY, realm);
     }
-    if (pooling) {
-      // Enable connection pooling
-      env.put(SUN_CONNECTION_POOLING_PROPERTY, "true");
-    }
     env.put(Context.INITIAL_CONTEXT_FACTORY, factory);
     env.put(Context.PROVIDER_URL, providerUrl);
     env.put(Context.REFERRAL, referral);
+    putTimeouts(env, readTimeoutMillis);
     if (principal != null) {
       env.put(Context.SECURITY_PRINCIPAL, principal);
     }
@@ -187,6 +313,15 @@ public class LdapContextFactory {
     return env;
   }
 
+  private void putTimeouts(Properties env, int readTimeoutMillis) {
+    if (connectTimeout > 0) {
+      env.put(CONNECT_TIMEOUT_PROPERTY, Integer.toString(connectTimeout));
+    }
+    if (readTimeoutMillis > 0) {
+      env.put(READ_TIMEOUT_PROPERTY, Integer.toString(readTimeoutMillis));
+    }
+  }
+
   public boolean isSasl() {
     return AUTH_METHOD_DIGEST_MD5.equals(authentication) ||
       AUTH_METHOD_CRAM_MD5.equals(authentication) ||
@@ -207,7 +342,10 @@ public class LdapContextFactory {
       throw new IllegalArgumentException("When using SASL - property ldap.bindDn is required");
     }
     try {
-      createBindContext();
+      releaseBindContext(borrowBindContext(), false);
+      if (pool != null) {
+        pool.fill();
+      }
       LOG.info("Test LDAP connection on {}: OK", providerUrl);
     } catch (NamingException e) {
       LOG.info("Test LDAP connection: FAIL");
@@ -223,6 +361,63 @@ public class LdapContextFactory {
     return referral;
   }
 
+  /**
+   * @return time limit in milliseconds of searches, 0 for no limit
+   */
+  public int getSearchTimeLimit() {
+    return searchTimeLimit;
+  }
+
+  /**
+   * @return metrics of the operations on this server, shared with its replicas
+   */
+  public LdapMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return the pool of bind contexts managed by the plugin, or null if pooling is disabled
+   */
+  @CheckForNull
+  public LdapConnectionPool getPool() {
+    return pool;
+  }
+
+  public LdapCircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * @return configuration of the Kerberos logins of the bind user
+   */
+  public Krb5LoginConfiguration getKerberosConfiguration() {
+    return kerberosConfiguration;
+  }
+
+  /**
+   * @return checks of passwords of users against the KDC, or null if the server does not use GSSAPI
+   */
+  @CheckForNull
+  public LdapKerberosVerifier getKerberosVerifier() {
+    return kerberosVerifier;
+  }
+
+  /**
+   * @return Kerberos credentials of the bind user, or null if the server does not use GSSAPI
+   */
+  @CheckForNull
+  public LdapKerberosSubject getKerberosSubject() {
+    return kerberosSubject;
+  }
+
+  /**
+   * @return hedging of searches to the replicas of the server, or null if it has none
+   */
+  @CheckForNull
+  public LdapHedging getHedging() {
+    return hedging;
+  }
+
   private static String getReferralsMode(Configuration settings, String followReferralsSettingKey) {
     if (settings.hasKey(followReferralsSettingKey)) {
       return settings.getBoolean(followReferralsSettingKey).orElse(true) ? REFERRALS_FOLLOW_MODE : REFERRALS_IGNORE_MODE;
@@ -240,6 +435,12 @@ public class LdapContextFactory {
       ", bindDn=" + username +
       ", realm=" + realm +
       ", referral=" + referral +
+      ", connectTimeout=" + connectTimeout +
+      ", readTimeout=" + readTimeout +
+      ", searchTimeLimit=" + searchTimeLimit +
+      (pool == null ? "" : ", pool=" + pool) +
+      (circuitBreaker.isEnabled() ? ", circuitBreaker=" + circuitBreaker : "") +
+      (hedging == null ? "" : ", hedging=" + hedging) +
       "}";
   }
 
@@ -0,0 +1,190 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Cache of successful password verifications, so that clients authenticating again and again with the same credentials
+ * do not hit the LDAP servers each time.
+ * Only a salted PBKDF2 digest of the password is kept, never the password itself.
+ * <ul>
+ *   <li>{@code ldap.authenticationCache.ttl}: time in milliseconds during which a verification is reused, 0 (default) to disable the cache</li>
+ *   <li>{@code ldap.authenticationCache.maxEntries}: maximum number of cached verifications, least recently used ones are evicted</li>
+ * </ul>
+ */
+public class LdapCredentialCache {
+
+  private static final Logger LOG = Loggers.get(LdapCredentialCache.class);
+
+  private static final int DEFAULT_MAX_ENTRIES = 1000;
+  private static final String DIGEST_ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int DIGEST_ITERATIONS = 10_000;
+  private static final int DIGEST_LENGTH = 256;
+  private static final int SALT_LENGTH = 16;
+
+  private final long ttl;
+  private final Map<String, Verification> verifications;
+  private final SecureRandom random = new SecureRandom();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Constructs cache from Sonar settings.
+   */
+  public LdapCredentialCache(Configuration settings) {
+    this(settings.getLong("ldap.authenticationCache.ttl").orElse(0L),
+      settings.getInt("ldap.authenticationCache.maxEntries").orElse(DEFAULT_MAX_ENTRIES));
+  }
+
+  LdapCredentialCache(long ttl, final int maxEntries) {
+    this.ttl = ttl;
+    // Access ordered, so that the eldest entry is the least recently used one
+    this.verifications = new LinkedHashMap<String, Verification>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Verification> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0;
+  }
+
+  /**
+   * @return true if the given password was successfully verified for this login on this server less than TTL ago. Any
+   * other password forgets the verification, which has then to be done again by the server.
+   */
+  public boolean matches(String serverKey, String login, String password) {
+    if (!isEnabled()) {
+      return false;
+    }
+    String key = key(serverKey, login);
+    Verification verification;
+    synchronized (verifications) {
+      // taken out until the password is checked, so that wrong passwords cost at most one digest per verification
+      verification = verifications.remove(key);
+      if (verification != null && System.nanoTime() - verification.verifiedAt > TimeUnit.MILLISECONDS.toNanos(ttl)) {
+        verification = null;
+      }
+    }
+    if (verification == null) {
+      misses.incrementAndGet();
+      return false;
+    }
+    boolean matches = MessageDigest.isEqual(verification.digest, digest(password, verification.salt));
+    if (matches) {
+      synchronized (verifications) {
+        // unless verified again or invalidated in the meantime
+        verifications.putIfAbsent(key, verification);
+      }
+    }
+    (matches ? hits : misses).incrementAndGet();
+    LOG.debug("Cached password verification for user {} in server {}: {}", login, serverKey, matches ? "hit" : "miss");
+    return matches;
+  }
+
+  /**
+   * Records a successful password verification.
+   */
+  public void put(String serverKey, String login, String password) {
+    if (!isEnabled()) {
+      return;
+    }
+    byte[] salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+    Verification verification = new Verification(salt, digest(password, salt), System.nanoTime());
+    synchronized (verifications) {
+      verifications.put(key(serverKey, login), verification);
+    }
+  }
+
+  /**
+   * Forgets the verification of this login on this server, e.g. because its password has just been rejected.
+   */
+  public void invalidate(String serverKey, String login) {
+    synchronized (verifications) {
+      verifications.remove(key(serverKey, login));
+    }
+  }
+
+  /**
+   * Forgets everything, e.g. when changes in the servers may have been missed.
+   */
+  public void invalidateAll() {
+    synchronized (verifications) {
+      verifications.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (verifications) {
+      return verifications.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private static String key(String serverKey, String login) {
+    return serverKey + '\u0000' + login;
+  }
+
+  private static byte[] digest(String password, byte[] salt) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, DIGEST_ITERATIONS, DIGEST_LENGTH);
+    try {
+      return SecretKeyFactory.getInstance(DIGEST_ALGORITHM).generateSecret(spec).getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to compute digest of password", e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+
+  private static final class Verification {
+    private final byte[] salt;
+    private final byte[] digest;
+    private final long verifiedAt;
+
+    private Verification(byte[] salt, byte[] digest, long verifiedAt) {
+      this.salt = salt;
+      this.digest = digest;
+      this.verifiedAt = verifiedAt;
+    }
+  }
+
+}
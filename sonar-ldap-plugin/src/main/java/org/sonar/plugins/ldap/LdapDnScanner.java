@@ -0,0 +1,247 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import javax.annotation.CheckForNull;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * Extracts the leaf RDN of a distinguished name in its string representation (RFC 4514), e.g. "sonar-users" from
+ * "cn=sonar-users,ou=groups,dc=example,dc=org", without parsing the other RDNs.
+ * <p>
+ * Unlike {@link LdapName}, no object is created besides the returned value, which is a substring of the DN unless it
+ * contains escaped characters. Multi-valued RDNs and values encoded in hexadecimal ("#04...") are rare, so they are
+ * delegated to {@link LdapName}.
+ */
+final class LdapDnScanner {
+
+  private LdapDnScanner() {
+  }
+
+  /**
+   * Base DN, which tells whether DNs are under it without parsing them in the usual case where they are written
+   * without spaces around separators nor escaped characters, like DNs returned by servers.
+   */
+  static final class Base {
+    private final LdapName name;
+    // e.g. ",ou=groups,dc=example,dc=org"
+    private final String suffix;
+
+    Base(String dn) throws InvalidNameException {
+      this.name = new LdapName(dn);
+      this.suffix = "," + normalize(name);
+    }
+
+    /**
+     * @return true if the DN is the base DN or is under it, ignoring case
+     * @throws InvalidNameException if the DN is malformed and had to be parsed
+     */
+    boolean contains(String dn) throws InvalidNameException {
+      int start = dn.length() - suffix.length();
+      if (start >= 0 && dn.regionMatches(true, start, suffix, 0, suffix.length()) && !isEscaped(dn, 0, start)) {
+        return true;
+      }
+      if (dn.length() + 1 == suffix.length() && dn.regionMatches(true, 0, suffix, 1, dn.length())) {
+        return true;
+      }
+      if (isPlain(dn)) {
+        return false;
+      }
+      return new LdapName(dn).startsWith(name);
+    }
+  }
+
+  /**
+   * @return the DN in lower case, without spaces around separators and with the escaping of RFC 4514, so that two
+   * strings of the same DN, e.g. as value of a member attribute and as name of the entry, are equal
+   * @throws InvalidNameException if the DN is malformed
+   */
+  static String normalize(String dn) throws InvalidNameException {
+    if (isPlain(dn)) {
+      return dn.toLowerCase(Locale.ENGLISH);
+    }
+    return normalize(new LdapName(dn));
+  }
+
+  private static String normalize(LdapName name) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = name.size() - 1; i >= 0; i--) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(name.getRdn(i).toString().toLowerCase(Locale.ENGLISH));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return true if the DN is already in the form returned by {@link #normalize(String)}, ignoring case: single valued
+   * RDNs separated by commas, without spaces, escaped characters nor characters which would have to be escaped
+   */
+  private static boolean isPlain(String dn) {
+    int separators = 0;
+    int equals = 0;
+    for (int i = 0; i < dn.length(); i++) {
+      char c = dn.charAt(i);
+      if (c == ',') {
+        separators++;
+      } else if (c == '=') {
+        equals++;
+      } else if (c == ' ' || c == '\\' || c == '"' || c == '+' || c == ';' || c == '#' || c == '<' || c == '>') {
+        return false;
+      }
+    }
+    // e.g. "cn=a=b", where "=" is escaped once normalized
+    return !dn.isEmpty() && equals == separators + 1 && dn.charAt(dn.length() - 1) != '=';
+  }
+
+  /**
+   * @param type expected type of the leaf RDN, compared ignoring case
+   * @return unescaped value of the leaf RDN of the DN, or null if its type is not the expected one
+   * @throws InvalidNameException if the DN is malformed
+   */
+  @CheckForNull
+  static String getLeafValue(String dn, String type) throws InvalidNameException {
+    int length = dn.length();
+    int typeStart = skipSpaces(dn, 0);
+    int equals = typeStart;
+    while (equals < length && dn.charAt(equals) != '=') {
+      char c = dn.charAt(equals);
+      if (c == ',' || c == ';' || c == '+' || c == '\\') {
+        throw new InvalidNameException("Invalid name: " + dn);
+      }
+      equals++;
+    }
+    int typeEnd = equals;
+    while (typeEnd > typeStart && dn.charAt(typeEnd - 1) == ' ') {
+      typeEnd--;
+    }
+    if (equals == length || typeEnd == typeStart) {
+      throw new InvalidNameException("Invalid name: " + dn);
+    }
+    if (typeEnd - typeStart != type.length() || !dn.regionMatches(true, typeStart, type, 0, type.length())) {
+      return null;
+    }
+
+    int valueStart = skipSpaces(dn, equals + 1);
+    if (valueStart < length && (dn.charAt(valueStart) == '#' || dn.charAt(valueStart) == '"')) {
+      return getLeafValueUsingLdapName(dn, type);
+    }
+    boolean escaped = false;
+    int i = valueStart;
+    while (i < length) {
+      char c = dn.charAt(i);
+      if (c == '\\') {
+        escaped = true;
+        i += 2;
+      } else if (c == ',' || c == ';') {
+        break;
+      } else if (c == '+') {
+        // multi-valued RDN
+        return getLeafValueUsingLdapName(dn, type);
+      } else {
+        i++;
+      }
+    }
+    if (i > length) {
+      // trailing backslash
+      throw new InvalidNameException("Invalid name: " + dn);
+    }
+    int valueEnd = i;
+    while (valueEnd > valueStart && dn.charAt(valueEnd - 1) == ' ' && !isEscaped(dn, valueStart, valueEnd - 1)) {
+      valueEnd--;
+    }
+    if (!escaped) {
+      return dn.substring(valueStart, valueEnd);
+    }
+    return unescape(dn, valueStart, valueEnd);
+  }
+
+  private static int skipSpaces(String dn, int from) {
+    int i = from;
+    while (i < dn.length() && dn.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * @return true if the character at the given index is preceded by an odd number of backslashes
+   */
+  private static boolean isEscaped(String dn, int start, int index) {
+    int backslashes = 0;
+    for (int i = index - 1; i >= start && dn.charAt(i) == '\\'; i--) {
+      backslashes++;
+    }
+    return backslashes % 2 == 1;
+  }
+
+  private static String unescape(String dn, int start, int end) throws InvalidNameException {
+    StringBuilder value = new StringBuilder(end - start);
+    // UTF-8 bytes of consecutive hexadecimal pairs, e.g. "\C3\A9"
+    ByteArrayOutputStream bytes = null;
+    int i = start;
+    while (i < end) {
+      char c = dn.charAt(i);
+      if (c != '\\') {
+        value.append(c);
+        i++;
+        continue;
+      }
+      if (i + 1 >= end) {
+        throw new InvalidNameException("Invalid name: " + dn);
+      }
+      int high = Character.digit(dn.charAt(i + 1), 16);
+      int low = i + 2 < end ? Character.digit(dn.charAt(i + 2), 16) : -1;
+      if (high < 0 || low < 0) {
+        value.append(dn.charAt(i + 1));
+        i += 2;
+        continue;
+      }
+      if (bytes == null) {
+        bytes = new ByteArrayOutputStream();
+      }
+      bytes.write((high << 4) + low);
+      i += 3;
+      if (i >= end || dn.charAt(i) != '\\' || i + 2 >= end
+        || Character.digit(dn.charAt(i + 1), 16) < 0 || Character.digit(dn.charAt(i + 2), 16) < 0) {
+        value.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        bytes.reset();
+      }
+    }
+    return value.toString();
+  }
+
+  @CheckForNull
+  private static String getLeafValueUsingLdapName(String dn, String type) throws InvalidNameException {
+    LdapName name = new LdapName(dn);
+    Rdn leaf = name.getRdn(name.size() - 1);
+    if (type.equalsIgnoreCase(leaf.getType()) && leaf.getValue() instanceof String) {
+      return (String) leaf.getValue();
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.NamingException;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Cache of the groups of users, keyed by server and DN of the user, so that frequent logins do not resolve groups
+ * again and again.
+ * <ul>
+ *   <li>{@code ldap.groupCache.ttl}: time in milliseconds during which groups are reused, 0 (default) to disable the cache</li>
+ *   <li>{@code ldap.groupCache.refreshAhead}: time in milliseconds before expiry during which groups still being used
+ *   are resolved again in the background, 20% of TTL by default</li>
+ *   <li>{@code ldap.groupCache.maxEntries}: maximum number of cached users, least recently used ones are evicted</li>
+ * </ul>
+ */
+public class LdapGroupCache {
+
+  private static final Logger LOG = Loggers.get(LdapGroupCache.class);
+
+  private static final int DEFAULT_MAX_ENTRIES = 1000;
+  private static final int MAX_PENDING_REFRESHES = 100;
+
+  /**
+   * Resolves the groups of a user.
+   */
+  public interface Loader {
+    Set<String> load(LdapSession session) throws NamingException;
+  }
+
+  private final long ttl;
+  private final long refreshAhead;
+  private final Map<String, Entry> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+  // incremented on each invalidation, guarded by entries
+  private long generation;
+  private ExecutorService refresher;
+
+  /**
+   * Constructs cache from Sonar settings.
+   */
+  public LdapGroupCache(Configuration settings) {
+    this(settings.getLong("ldap.groupCache.ttl").orElse(0L),
+      settings.getLong("ldap.groupCache.refreshAhead").orElse(-1L),
+      settings.getInt("ldap.groupCache.maxEntries").orElse(DEFAULT_MAX_ENTRIES));
+  }
+
+  /**
+   * @param refreshAhead negative for the default, 20% of TTL
+   */
+  LdapGroupCache(long ttl, long refreshAhead, final int maxEntries) {
+    this.ttl = ttl;
+    this.refreshAhead = refreshAhead < 0 ? (ttl / 5) : Math.min(refreshAhead, ttl);
+    // Access ordered, so that the eldest entry is the least recently used one
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0;
+  }
+
+  /**
+   * @return groups of the user, from the cache unless expired, in which case they are resolved by the loader using the
+   * given session
+   */
+  public Set<String> get(LdapSession session, String serverKey, String userDn, Loader loader) throws NamingException {
+    if (!isEnabled()) {
+      return loader.load(session);
+    }
+    String key = key(serverKey, userDn);
+    Entry entry;
+    long loadedGeneration;
+    synchronized (entries) {
+      entry = entries.get(key);
+      loadedGeneration = generation;
+    }
+    long now = System.nanoTime();
+    if (entry != null && now - entry.loadedAt <= TimeUnit.MILLISECONDS.toNanos(ttl)) {
+      hits.incrementAndGet();
+      if (now - entry.loadedAt > TimeUnit.MILLISECONDS.toNanos(ttl - refreshAhead) && entry.refreshing.compareAndSet(false, true)) {
+        refreshInBackground(key, entry, loadedGeneration, loader);
+      }
+      return entry.groups;
+    }
+    misses.incrementAndGet();
+    Entry loaded = Entry.of(loader.load(session));
+    put(key, loaded, loadedGeneration);
+    return loaded.groups;
+  }
+
+  /**
+   * Stores groups unless the cache was invalidated while they were loaded, since they may then be stale.
+   *
+   * @return whether groups were stored
+   */
+  private boolean put(String key, Entry entry, long loadedGeneration) {
+    synchronized (entries) {
+      if (loadedGeneration != generation) {
+        LOG.debug("Groups of {} invalidated while loaded, not cached", key);
+        return false;
+      }
+      entries.put(key, entry);
+      return true;
+    }
+  }
+
+  private void refreshInBackground(final String key, final Entry entry, final long loadedGeneration, final Loader loader) {
+    try {
+      getRefresher().execute(() -> {
+        LdapSession session = new LdapSession();
+        try {
+          if (put(key, Entry.of(loader.load(session)), loadedGeneration)) {
+            refreshes.incrementAndGet();
+          }
+        } catch (NamingException | RuntimeException e) {
+          LOG.debug("Unable to refresh groups of {}: {}", key, e.getMessage());
+          entry.refreshing.set(false);
+        } finally {
+          session.close();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // too many pending refreshes, groups will be resolved again once expired
+      entry.refreshing.set(false);
+    }
+  }
+
+  private synchronized ExecutorService getRefresher() {
+    if (refresher == null) {
+      refresher = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_REFRESHES), runnable -> {
+        Thread thread = new Thread(runnable, "ldap-group-cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+      }, new ThreadPoolExecutor.AbortPolicy());
+      ((ThreadPoolExecutor) refresher).allowCoreThreadTimeOut(true);
+    }
+    return refresher;
+  }
+
+  /**
+   * Forgets the groups of the user, e.g. when its memberships are known to have changed.
+   * Groups being loaded meanwhile, for any user, are not cached.
+   */
+  public void invalidate(String serverKey, String userDn) {
+    synchronized (entries) {
+      entries.remove(key(serverKey, userDn));
+      generation++;
+    }
+  }
+
+  /**
+   * Forgets the groups of all users.
+   */
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+      generation++;
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of entries refreshed in the background before their expiry
+   */
+  public long getRefreshes() {
+    return refreshes.get();
+  }
+
+  private static String key(String serverKey, String userDn) {
+    // DNs are case insensitive in practice
+    return serverKey + '\u0000' + userDn.toLowerCase(Locale.ENGLISH);
+  }
+
+  private static final class Entry {
+    private final Set<String> groups;
+    private final long loadedAt;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private Entry(Set<String> groups, long loadedAt) {
+      this.groups = groups;
+      this.loadedAt = loadedAt;
+    }
+
+    private static Entry of(Set<String> groups) {
+      return new Entry(Collections.unmodifiableSet(new HashSet<>(groups)), System.nanoTime());
+    }
+  }
+
+}
@@ -0,0 +1,424 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * In-memory index of the groups of each member, built from a single paged scan of all the groups of a server, so
+ * that groups of a user are found without searching the directory.
+ * <p>
+ * Between two full scans, the groups whose change attribute ({@code modifyTimestamp}, or {@code uSNChanged} on Active
+ * Directory) is beyond the highest value seen so far are polled, and only these groups are updated in the index.
+ * Deleted groups do not show up in such polls, so they are reconciled by the next full scan.
+ * <p>
+ * Only the groups matching the group request of the server are indexed, whatever their members, and only direct
+ * memberships. Until the index is built, or when it has not been updated for two intervals,
+ * {@link #getGroups(String)} returns null and groups have to be searched.
+ */
+public class LdapGroupIndex {
+
+  private static final Logger LOG = Loggers.get(LdapGroupIndex.class);
+
+  private static final int DEFAULT_PAGE_SIZE = 500;
+  private static final String USN_CHANGED = "uSNChanged";
+
+  private final String serverKey;
+  private final LdapContextFactory contextFactory;
+  private final LdapGroupMapping groupMapping;
+  private final boolean numericChangeAttribute;
+  private final AtomicLong polledChanges = new AtomicLong();
+  private final AtomicBoolean pollUnavailableLogged = new AtomicBoolean();
+  private volatile State state;
+  private ScheduledExecutorService scheduler;
+
+  public LdapGroupIndex(String serverKey, LdapContextFactory contextFactory, LdapGroupMapping groupMapping) {
+    this.serverKey = serverKey;
+    this.contextFactory = contextFactory;
+    this.groupMapping = groupMapping;
+    this.numericChangeAttribute = USN_CHANGED.equalsIgnoreCase(groupMapping.getIndexChangeAttribute());
+  }
+
+  /**
+   * Builds the index in the background, then rebuilds it and polls changes periodically.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "ldap-group-index-" + serverKey);
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        rebuild();
+      } catch (NamingException | RuntimeException e) {
+        LOG.warn("Unable to build index of groups of {}, groups will be searched: {}", serverKey, e.getMessage());
+      }
+    }, 0, groupMapping.getIndexRefreshInterval(), TimeUnit.MILLISECONDS);
+    long pollInterval = groupMapping.getIndexPollInterval();
+    if (pollInterval > 0) {
+      scheduler.scheduleWithFixedDelay(() -> {
+        try {
+          poll();
+        } catch (NamingException | RuntimeException e) {
+          LOG.warn("Unable to poll changes of groups of {}: {}", serverKey, e.getMessage());
+        }
+      }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Scans all the groups of the server and replaces the index.
+   */
+  public void rebuild() throws NamingException {
+    long start = System.nanoTime();
+    State building = new State();
+    boolean complete = scan("(" + groupMapping.getIndexMemberAttribute() + "=*)", building);
+    synchronized (this) {
+      if (!complete) {
+        // e.g. range retrieval of Active Directory, for groups having too many members
+        LOG.warn("Members of some groups of {} could not be read at once, groups will be searched", serverKey);
+        state = null;
+        return;
+      }
+      building.updatedAt = System.nanoTime();
+      state = building;
+    }
+    LOG.info("Index of groups of {} built in {} ms: {} groups, {} members", serverKey,
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), building.groups.size(), building.memberships.size());
+  }
+
+  /**
+   * Updates the index with the groups changed since the highest change seen so far. When no change attribute could be
+   * read, e.g. for lack of access rights, the index is only updated by the next rebuild.
+   */
+  public void poll() throws NamingException {
+    State current = state;
+    if (current == null) {
+      // not built yet
+      return;
+    }
+    if (current.highWaterMark == null) {
+      synchronized (this) {
+        if (state != current) {
+          return;
+        }
+        if (!current.groups.isEmpty() && pollUnavailableLogged.compareAndSet(false, true)) {
+          LOG.warn("Changes of groups of {} can not be polled, as the attribute {} of groups is not readable: groups are only updated "
+            + "when the index is rebuilt", serverKey, groupMapping.getIndexChangeAttribute());
+        }
+        // nothing to compare to, so the index stays as fresh as its last rebuild, as if polling was disabled
+        current.updatedAt = System.nanoTime();
+      }
+      return;
+    }
+    // a group changed during the previous scan, before another group with a higher change, is only seen by the next
+    // rebuild
+    String changeAttribute = groupMapping.getIndexChangeAttribute();
+    String request;
+    if (numericChangeAttribute) {
+      request = "(" + changeAttribute + ">=" + (Long.parseLong(current.highWaterMark) + 1) + ")";
+    } else {
+      // changes within the same second as the high water mark are read again, which is harmless
+      request = "(" + changeAttribute + ">=" + current.highWaterMark + ")";
+    }
+    long before = current.changes;
+    synchronized (this) {
+      if (state != current) {
+        return;
+      }
+      if (!scan(request, current)) {
+        LOG.warn("Members of some groups of {} could not be read at once, groups will be searched", serverKey);
+        state = null;
+        return;
+      }
+      current.updatedAt = System.nanoTime();
+    }
+    long changes = current.changes - before;
+    polledChanges.addAndGet(changes);
+    LOG.debug("{} changed groups of {} applied to index", changes, serverKey);
+  }
+
+  /**
+   * Reads the groups matching the request, and applies them to the given state.
+   *
+   * @return false if members of some groups could not be read
+   */
+  private boolean scan(String request, State target) throws NamingException {
+    NamingEnumeration<SearchResult> result = new LdapSearch(contextFactory)
+      .setBaseDn(groupMapping.getBaseDn())
+      // only the groups of the group request, e.g. of a given object class
+      .setRequest("(&" + groupMapping.getAllGroupsRequest() + request + ")")
+      .returns(groupMapping.getIdAttribute(), groupMapping.getIndexMemberAttribute(), groupMapping.getIndexChangeAttribute())
+      .setPageSize(groupMapping.getPageSize() > 0 ? groupMapping.getPageSize() : DEFAULT_PAGE_SIZE)
+      .setOperation(LdapMetrics.Operation.GROUP_SEARCH)
+      .find();
+    boolean complete = true;
+    try {
+      while (LdapSearch.hasMore(result)) {
+        complete &= apply(result.next(), target, true);
+      }
+    } finally {
+      result.close();
+    }
+    return complete;
+  }
+
+  /**
+   * Applies a group changed since the index was built, e.g. as notified by a {@link LdapChangeListener}. A group
+   * without members is removed.
+   *
+   * @return false if the members of the group could not be read, in which case the index is not usable until rebuilt
+   */
+  synchronized boolean applyChange(SearchResult group) throws NamingException {
+    State current = state;
+    if (current == null) {
+      return false;
+    }
+    // the poll following a reconnection of the LdapChangeListener relies on the high water mark, so changes notified
+    // out of order must not raise it
+    if (!apply(group, current, false)) {
+      state = null;
+      return false;
+    }
+    return true;
+  }
+
+  private boolean apply(SearchResult group, State target, boolean raiseHighWaterMark) throws NamingException {
+    Attribute change = group.getAttributes().get(groupMapping.getIndexChangeAttribute());
+    if (raiseHighWaterMark && change != null) {
+      target.raiseHighWaterMark((String) change.get(), numericChangeAttribute);
+    }
+    Attribute members = group.getAttributes().get(groupMapping.getIndexMemberAttribute());
+    String[] memberDns = null;
+    if (members != null) {
+      memberDns = new String[members.size()];
+      NamingEnumeration<?> values = members.getAll();
+      for (int i = 0; values.hasMore(); i++) {
+        memberDns[i] = normalize((String) values.next());
+      }
+    } else if (hasRangedAttribute(group, groupMapping.getIndexMemberAttribute())) {
+      return false;
+    }
+    target.put(normalize(group.getNameInNamespace()), groupMapping.getGroupId(group), memberDns);
+    return true;
+  }
+
+  private static boolean hasRangedAttribute(SearchResult entry, String attributeId) throws NamingException {
+    String prefix = attributeId.toLowerCase(Locale.ENGLISH) + ";range=";
+    NamingEnumeration<String> ids = entry.getAttributes().getIDs();
+    while (ids.hasMore()) {
+      if (ids.next().toLowerCase(Locale.ENGLISH).startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return IDs of the groups the member is directly member of, or null if the index is not usable or does not know
+   * the member, in which case groups have to be searched
+   */
+  @CheckForNull
+  public Collection<String> getGroups(String memberDn) {
+    State current = state;
+    long interval = groupMapping.getIndexPollInterval() > 0 ? groupMapping.getIndexPollInterval() : groupMapping.getIndexRefreshInterval();
+    if (current == null || System.nanoTime() - current.updatedAt > TimeUnit.MILLISECONDS.toNanos(2 * interval)) {
+      return null;
+    }
+    Group[] groups;
+    try {
+      groups = current.memberships.get(normalize(memberDn));
+    } catch (InvalidNameException e) {
+      LOG.debug("Unable to look up groups of {} in index: {}", memberDn, e.getMessage());
+      return null;
+    }
+    if (groups == null) {
+      // e.g. member of no group, or member written in a form the index does not know
+      return null;
+    }
+    // groups with the same ID under different DNs are a single group for SonarQube
+    Set<String> ids = new LinkedHashSet<>();
+    for (Group group : groups) {
+      ids.add(group.id);
+    }
+    return Collections.unmodifiableSet(ids);
+  }
+
+  public boolean isReady() {
+    return state != null;
+  }
+
+  public int getGroupCount() {
+    State current = state;
+    return current == null ? 0 : current.groups.size();
+  }
+
+  public int getMemberCount() {
+    State current = state;
+    return current == null ? 0 : current.memberships.size();
+  }
+
+  /**
+   * @return number of changed groups applied by polls
+   */
+  public long getPolledChanges() {
+    return polledChanges.get();
+  }
+
+  /**
+   * DNs are compared ignoring case and formatting, since members may be written differently than the entries of users.
+   */
+  private static String normalize(String dn) throws InvalidNameException {
+    return LdapDnScanner.normalize(dn);
+  }
+
+  private static final class Group {
+    private final String id;
+    private final String[] members;
+
+    private Group(String id, String[] members) {
+      this.id = id;
+      this.members = members;
+    }
+  }
+
+  /**
+   * Index at a given time. Lookups only read {@link #memberships}, whose arrays are never modified but replaced, so
+   * that changes can be applied while lookups go on. Memberships reference groups by identity, i.e. by DN, so that
+   * removing a group does not affect another group having the same ID.
+   */
+  private static final class State {
+    // DN of member -> its groups
+    private final Map<String, Group[]> memberships = new ConcurrentHashMap<>();
+    // DN of group -> group, only used to apply changes
+    private final Map<String, Group> groups = new HashMap<>();
+    // each string is stored once, whatever the number of groups or members referencing it
+    private final Map<String, String> strings = new HashMap<>();
+    private String highWaterMark;
+    private long changes;
+    private volatile long updatedAt;
+
+    private void put(String groupDn, String groupId, @Nullable String[] memberDns) {
+      String id = intern(groupId);
+      Group previous = groups.remove(groupDn);
+      if (previous != null) {
+        for (String member : previous.members) {
+          removeMembership(member, previous);
+        }
+      }
+      if (memberDns != null && memberDns.length > 0) {
+        Group group = new Group(id, memberDns);
+        for (int i = 0; i < memberDns.length; i++) {
+          memberDns[i] = intern(memberDns[i]);
+          addMembership(memberDns[i], group);
+        }
+        groups.put(intern(groupDn), group);
+      }
+      changes++;
+    }
+
+    private void addMembership(String member, Group group) {
+      Group[] current = memberships.get(member);
+      if (current == null) {
+        memberships.put(member, new Group[] {group});
+      } else if (!Arrays.asList(current).contains(group)) {
+        Group[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = group;
+        memberships.put(member, updated);
+      }
+    }
+
+    private void removeMembership(String member, Group group) {
+      Group[] current = memberships.get(member);
+      if (current == null) {
+        return;
+      }
+      int index = Arrays.asList(current).indexOf(group);
+      if (index < 0) {
+        return;
+      }
+      if (current.length == 1) {
+        memberships.remove(member);
+        return;
+      }
+      Group[] updated = new Group[current.length - 1];
+      System.arraycopy(current, 0, updated, 0, index);
+      System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+      memberships.put(member, updated);
+    }
+
+    private String intern(String value) {
+      String interned = strings.get(value);
+      if (interned == null) {
+        strings.put(value, value);
+        return value;
+      }
+      return interned;
+    }
+
+    private void raiseHighWaterMark(String value, boolean numeric) {
+      if (highWaterMark == null || compare(value, highWaterMark, numeric) > 0) {
+        highWaterMark = value;
+      }
+    }
+
+    private static int compare(String a, String b, boolean numeric) {
+      if (numeric) {
+        return Long.compare(Long.parseLong(a), Long.parseLong(b));
+      }
+      // generalized times of a same directory have the same format, e.g. 20240101120000Z or 20240101120000.0Z
+      return a.compareTo(b);
+    }
+  }
+
+}
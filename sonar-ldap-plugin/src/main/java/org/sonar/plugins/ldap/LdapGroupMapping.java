@@ -20,9 +20,14 @@
 package org.sonar.plugins.ldap;
 
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.utils.log.Logger;
@@ -39,12 +44,61 @@ public class LdapGroupMapping {
   private static final String DEFAULT_ID_ATTRIBUTE = "cn";
   private static final String DEFAULT_MEMBER_ATTRIBUTE = "uniqueMember";
   private static final String DEFAULT_REQUEST = "(&(objectClass=groupOfUniqueNames)(uniqueMember={dn}))";
+  private static final String DEFAULT_NESTED_MEMBER_ATTRIBUTE = "member";
+  private static final int DEFAULT_NESTED_MAX_DEPTH = 10;
+  private static final long DEFAULT_INDEX_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(15);
+  private static final long DEFAULT_INDEX_POLL_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+  private static final String DEFAULT_INDEX_CHANGE_ATTRIBUTE = "modifyTimestamp";
+
+  /**
+   * Resolution of the groups the user is member of through other groups.
+   */
+  public enum NestedGroups {
+    /**
+     * Only direct memberships.
+     */
+    NONE("none"),
+    /**
+     * Transitive memberships resolved by the server with a single search, using the LDAP_MATCHING_RULE_IN_CHAIN
+     * matching rule of Active Directory.
+     */
+    IN_CHAIN("inChain"),
+    /**
+     * Transitive memberships resolved by searching the parents of the groups of each level, one level at a time.
+     */
+    CLIENT_SIDE("clientSide");
+
+    private final String value;
+
+    NestedGroups(String value) {
+      this.value = value;
+    }
+
+    static NestedGroups of(String settingKey, String value) {
+      for (NestedGroups nestedGroups : values()) {
+        if (nestedGroups.value.equalsIgnoreCase(value)) {
+          return nestedGroups;
+        }
+      }
+      throw new LdapException(String.format("The property '%s' has an invalid value '%s', expected one of none, inChain and clientSide.", settingKey, value));
+    }
+  }
 
   private final String baseDn;
   private final String idAttribute;
   private final String membershipAttribute;
   private final String request;
   private final String[] requiredUserAttributes;
+  private final int pageSize;
+  private final String memberOfAttribute;
+  private final NestedGroups nestedGroups;
+  private final String nestedMemberAttribute;
+  private final int nestedMaxDepth;
+  private final boolean indexEnabled;
+  private final String indexMemberAttribute;
+  private final long indexRefreshInterval;
+  private final long indexPollInterval;
+  private final String indexChangeAttribute;
 
   /**
    * Constructs mapping from Sonar settings.
@@ -53,6 +107,16 @@ public class LdapGroupMapping {
     this.baseDn = settings.get(settingsPrefix + ".group.baseDn").orElse(null);
     this.idAttribute = settings.get(settingsPrefix + ".group.idAttribute").orElse(DEFAULT_ID_ATTRIBUTE);
     this.membershipAttribute = settings.get(settingsPrefix + ".group.membershipAttribute").orElse(null);
+    this.pageSize = settings.getInt(settingsPrefix + ".group.pageSize").orElse(0);
+    this.memberOfAttribute = settings.get(settingsPrefix + ".group.memberOfAttribute").orElse(null);
+    String nestedKey = settingsPrefix + ".group.nested";
+    this.nestedGroups = NestedGroups.of(nestedKey, settings.get(nestedKey).orElse(NestedGroups.NONE.value));
+    this.nestedMemberAttribute = settings.get(settingsPrefix + ".group.nested.memberAttribute").orElse(DEFAULT_NESTED_MEMBER_ATTRIBUTE);
+    this.nestedMaxDepth = settings.getInt(settingsPrefix + ".group.nested.maxDepth").orElse(DEFAULT_NESTED_MAX_DEPTH);
+    this.indexEnabled = settings.getBoolean(settingsPrefix + ".group.index.enabled").orElse(false);
+    this.indexRefreshInterval = settings.getLong(settingsPrefix + ".group.index.refreshInterval").orElse(DEFAULT_INDEX_REFRESH_INTERVAL);
+    this.indexPollInterval = settings.getLong(settingsPrefix + ".group.index.pollInterval").orElse(DEFAULT_INDEX_POLL_INTERVAL);
+    this.indexChangeAttribute = settings.get(settingsPrefix + ".group.index.changeAttribute").orElse(DEFAULT_INDEX_CHANGE_ATTRIBUTE);
 
     String objectClass = settings.get(settingsPrefix + ".group.objectClass").orElse(null);
     String memberAttribute = settings.get(settingsPrefix + ".group.memberAttribute").orElse(null);
@@ -73,6 +137,44 @@ public class LdapGroupMapping {
       req = StringUtils.replace(req, "{" + requiredUserAttributes[i] + "}", "{" + i + "}");
     }
     this.request = req;
+    this.indexMemberAttribute = getIndexMemberAttribute(settings, settingsPrefix);
+  }
+
+  /**
+   * The index looks up groups by the DN of their members, so it must read the attribute the group request compares to
+   * the DN of the user.
+   */
+  private String getIndexMemberAttribute(Configuration settings, String settingsPrefix) {
+    String requestAttribute = getDnAttribute();
+    String key = settingsPrefix + ".group.index.memberAttribute";
+    String configured = settings.get(key).orElse(null);
+    if (indexEnabled) {
+      if (requestAttribute == null) {
+        throw new LdapException(String.format("The group index of '%s' requires a group request comparing an attribute to {dn}, " +
+          "e.g. (&(objectClass=groupOfUniqueNames)(uniqueMember={dn}))", settingsPrefix));
+      }
+      if (configured != null && !configured.equalsIgnoreCase(requestAttribute)) {
+        throw new LdapException(String.format("The property '%s' has value '%s', but the group request compares '%s' to the DN of users",
+          key, configured, requestAttribute));
+      }
+    }
+    if (configured != null) {
+      return configured;
+    }
+    return requestAttribute != null ? requestAttribute : DEFAULT_MEMBER_ATTRIBUTE;
+  }
+
+  /**
+   * @return attribute compared to the DN of the user by the request, e.g. "uniqueMember", or null if none
+   */
+  @CheckForNull
+  private String getDnAttribute() {
+    int index = Arrays.asList(requiredUserAttributes).indexOf("dn");
+    if (index < 0) {
+      return null;
+    }
+    Matcher matcher = Pattern.compile("\\(([^()=~<>!&|]+)=\\{" + index + "\\}\\)").matcher(request);
+    return matcher.find() ? matcher.group(1).trim() : null;
   }
 
   /**
@@ -92,10 +194,24 @@ public class LdapGroupMapping {
     LdapSearch ldapSearch= new LdapSearch(contextFactory)
       .setBaseDn(getBaseDn())
       .setRequest(getRequest())
-      .setParameters(parameters);
+      .setParameters(parameters)
+      .setPageSize(getPageSize())
+      .setOperation(LdapMetrics.Operation.GROUP_SEARCH);
     return (getMembershipAttribute() == null) ? ldapSearch.returns(getIdAttribute()) : ldapSearch.returns(getMembershipAttribute());
   }
 
+  /**
+   * @return value of the ID attribute of the group, or of the leaf RDN of its DN when the group has no such attribute
+   */
+  String getGroupId(SearchResult group) throws NamingException {
+    Attribute id = group.getAttributes().get(idAttribute);
+    if (id != null) {
+      return (String) id.get();
+    }
+    LdapName dn = new LdapName(group.getNameInNamespace());
+    return (String) dn.getRdn(dn.size() - 1).getValue();
+  }
+
   private static String getAttributeValue(SearchResult user, String attributeId) {
     Attribute attribute = user.getAttributes().get(attributeId);
     if (attribute == null) {
@@ -122,6 +238,14 @@ public class LdapGroupMapping {
     return idAttribute;
   }
 
+  /**
+   * Number of groups requested at once, using paged results. Default is 0, i.e. all groups at once without the paged
+   * results control, which not all servers support.
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
   /**
    * MemberShip Attribute. Default is null.
    */
@@ -141,6 +265,93 @@ public class LdapGroupMapping {
     return request;
   }
 
+  /**
+   * Request matching all the groups which {@link #getRequest()} may return, whatever their members: assertions on
+   * attributes of the user are replaced by assertions which are always true. For example:
+   * <pre>
+   * (&amp;(objectClass=groupOfUniqueNames)(objectClass=*))
+   * </pre>
+   */
+  public String getAllGroupsRequest() {
+    String req = request;
+    for (int i = 0; i < requiredUserAttributes.length; i++) {
+      req = req.replaceAll("\\([^()=]+=\\{" + i + "\\}\\)", "(objectClass=*)");
+      // e.g. "(cn=*{0}*)"
+      req = StringUtils.replace(req, "{" + i + "}", "*");
+    }
+    return req.replaceAll("\\*{2,}", "*");
+  }
+
+  /**
+   * Attribute of user listing the DNs of its groups, for example "memberOf" on Active Directory or OpenLDAP with the
+   * memberof overlay. When set, groups are derived from the user entry instead of being searched. Default is null.
+   */
+  @CheckForNull
+  public String getMemberOfAttribute() {
+    return memberOfAttribute;
+  }
+
+  /**
+   * Resolution of nested groups. Default is {@link NestedGroups#NONE}.
+   */
+  public NestedGroups getNestedGroups() {
+    return nestedGroups;
+  }
+
+  /**
+   * Attribute of groups listing the DNs of their members, groups included, used to resolve nested groups.
+   * Default is "member".
+   */
+  public String getNestedMemberAttribute() {
+    return nestedMemberAttribute;
+  }
+
+  /**
+   * Maximum number of levels of parent groups resolved by {@link NestedGroups#CLIENT_SIDE}. Default is 10.
+   */
+  public int getNestedMaxDepth() {
+    return nestedMaxDepth;
+  }
+
+  /**
+   * Whether groups of users are looked up in a {@link LdapGroupIndex} of all groups rather than searched. Default is false.
+   */
+  public boolean isIndexEnabled() {
+    return indexEnabled;
+  }
+
+  /**
+   * Attribute of groups listing the DNs of their members, used to build the {@link LdapGroupIndex}. Default is the
+   * attribute compared to the DN of the user by the group request, e.g. "uniqueMember".
+   */
+  public String getIndexMemberAttribute() {
+    return indexMemberAttribute;
+  }
+
+  /**
+   * Interval in milliseconds between two builds of the {@link LdapGroupIndex}, which also reconcile groups deleted
+   * since the previous build. Default is 15 minutes.
+   */
+  public long getIndexRefreshInterval() {
+    return indexRefreshInterval;
+  }
+
+  /**
+   * Interval in milliseconds between two polls of the groups changed since the previous poll, applied to the
+   * {@link LdapGroupIndex}. Default is 1 minute, 0 to only rebuild the index.
+   */
+  public long getIndexPollInterval() {
+    return indexPollInterval;
+  }
+
+  /**
+   * Attribute of groups increasing at each change, used to poll changed groups: "modifyTimestamp" (default), or
+   * "uSNChanged" on Active Directory.
+   */
+  public String getIndexChangeAttribute() {
+    return indexChangeAttribute;
+  }
+
   /**
    * Attributes of user required for search of groups.
    */
@@ -21,17 +21,21 @@ package org.sonar.plugins.ldap;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import javax.annotation.Nullable;
+import javax.naming.InvalidNameException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapName;
-import javax.naming.ldap.Rdn;
 
 import org.sonar.api.security.ExternalGroupsProvider;
 import org.sonar.api.utils.log.Logger;
@@ -49,11 +53,48 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
   private final Map<String, LdapContextFactory> contextFactories;
   private final Map<String, LdapUserMapping> userMappings;
   private final Map<String, LdapGroupMapping> groupMappings;
+  private final LdapUserLookup userLookup;
+  private final LdapNestedGroups nestedGroups;
+  private final LdapGroupCache groupCache;
+  private final Map<String, LdapGroupIndex> groupIndexes;
+  private final Map<String, LdapDnScanner.Base> groupBaseDns = new HashMap<>();
 
   public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping) {
+    this(contextFactories, userMappings, groupMapping, new LdapUserLookup(contextFactories, userMappings, groupMapping));
+  }
+
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapUserLookup userLookup) {
+    this(contextFactories, userMappings, groupMapping, userLookup, new LdapGroupCache(0, 0, 0));
+  }
+
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapUserLookup userLookup, LdapGroupCache groupCache) {
+    this(contextFactories, userMappings, groupMapping, userLookup, groupCache, Collections.<String, LdapGroupIndex>emptyMap());
+  }
+
+  /**
+   * @param groupIndexes indexes of groups of some servers, used instead of group searches when up to date
+   */
+  public LdapGroupsProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, Map<String, LdapGroupMapping> groupMapping,
+    LdapUserLookup userLookup, LdapGroupCache groupCache, Map<String, LdapGroupIndex> groupIndexes) {
     this.contextFactories = contextFactories;
     this.userMappings = userMappings;
     this.groupMappings = groupMapping;
+    this.userLookup = userLookup;
+    this.nestedGroups = new LdapNestedGroups(contextFactories, groupMapping);
+    this.groupCache = groupCache;
+    this.groupIndexes = groupIndexes;
+    for (Map.Entry<String, LdapGroupMapping> entry : groupMapping.entrySet()) {
+      String baseDn = entry.getValue().getBaseDn();
+      if (entry.getValue().getMemberOfAttribute() != null && baseDn != null) {
+        try {
+          groupBaseDns.put(entry.getKey(), new LdapDnScanner.Base(baseDn));
+        } catch (InvalidNameException e) {
+          throw new LdapException("Invalid base DN of groups of " + entry.getKey() + ": " + baseDn, e);
+        }
+      }
+    }
   }
 
   @Override
@@ -66,6 +107,15 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
    */
   public Collection<String> getGroups(String username) {
     checkPrerequisites(username);
+    LdapSession session = new LdapSession();
+    try {
+      return getGroups(session, username);
+    } finally {
+      session.close();
+    }
+  }
+
+  private Collection<String> getGroups(LdapSession session, String username) {
     Set<String> groups = new HashSet<>();
     List<LdapException> exceptions = new ArrayList<>();
     for (String serverKey : userMappings.keySet()) {
@@ -73,14 +123,11 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
         // No group mapping for this ldap instance.
         continue;
       }
-      SearchResult searchResult = searchUserGroups(username, exceptions, serverKey);
+      SearchResult searchResult = searchUserGroups(session, username, exceptions, serverKey);
 
       if (searchResult != null) {
         try {
-          NamingEnumeration<SearchResult> result = groupMappings
-            .get(serverKey)
-            .createSearch(contextFactories.get(serverKey), searchResult).find();
-          groups.addAll(mapGroups(serverKey, result));
+          groups.addAll(groupCache.get(session, serverKey, searchResult.getNameInNamespace(), s -> resolveGroups(s, serverKey, searchResult)));
           // if no exceptions occur, we found the user and his groups and mapped his details.
           break;
         } catch (NamingException e) {
@@ -97,6 +144,26 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
     return groups;
   }
 
+  private Set<String> resolveGroups(LdapSession session, String serverKey, SearchResult user) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    Set<String> groups = new HashSet<>();
+    if (groupMapping.getNestedGroups() == LdapGroupMapping.NestedGroups.IN_CHAIN) {
+      nestedGroups.findInChain(session, serverKey, user, groups);
+      return groups;
+    }
+    // DNs of the groups are only needed to expand nested groups
+    Set<LdapName> groupDns = groupMapping.getNestedGroups() == LdapGroupMapping.NestedGroups.CLIENT_SIDE ? new HashSet<>() : null;
+    if (!mapMemberOf(serverKey, user, groups, groupDns) && !mapIndexedGroups(serverKey, user, groups, groupDns)) {
+      NamingEnumeration<SearchResult> result = groupMapping
+        .createSearch(contextFactories.get(serverKey), user).setSession(session).find();
+      mapGroups(serverKey, result, groups, groupDns);
+    }
+    if (groupMapping.getNestedGroups() == LdapGroupMapping.NestedGroups.CLIENT_SIDE) {
+      nestedGroups.expand(session, serverKey, groupDns, groups);
+    }
+    return groups;
+  }
+
   private static void checkResults(Set<String> groups, List<LdapException> exceptions) {
     if (groups.isEmpty() && !exceptions.isEmpty()) {
       // No groups found and there is an exception so there is a reason the user could not be found.
@@ -110,14 +177,12 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
     }
   }
 
-  private SearchResult searchUserGroups(String username, List<LdapException> exceptions, String serverKey) {
+  private SearchResult searchUserGroups(LdapSession session, String username, List<LdapException> exceptions, String serverKey) {
     SearchResult searchResult = null;
     try {
       LOG.debug("Requesting groups for user {}", username);
 
-      searchResult = userMappings.get(serverKey).createSearch(contextFactories.get(serverKey), username)
-        .returns(groupMappings.get(serverKey).getRequiredUserAttributes())
-        .findUnique();
+      searchResult = userLookup.find(session, serverKey, username);
     } catch (NamingException e) {
       // just in case if Sonar silently swallowed exception
       LOG.debug(e.getMessage(), e);
@@ -131,35 +196,122 @@ public class LdapGroupsProvider extends ExternalGroupsProvider {
    *
    * @param serverKey The index we use to choose the correct {@link LdapGroupMapping}.
    * @param searchResult The {@link SearchResult} from the search for the user.
-   * @return A {@link Collection} of groups the user is member of.
+   * @param groups The groups the user is member of.
+   * @param groupDns The DNs of these groups, or null if not needed.
    * @throws NamingException
    */
-  private Collection<String> mapGroups(String serverKey, NamingEnumeration<SearchResult> searchResult) throws NamingException {
-    Set<String> groups = new HashSet<>();
-
-    String idAttribute = groupMappings.get(serverKey).getIdAttribute();
-    while (searchResult.hasMoreElements()) {
-      SearchResult obj = searchResult.nextElement();
-      if (groupMappings.get(serverKey).getMembershipAttribute() == null) {
-        Attributes attributes = obj.getAttributes();
-        String groupId = (String) attributes.get(idAttribute).get();
-        groups.add(groupId);
-      } else {
-        Attribute groupMembershipAttribute = obj.getAttributes().get(groupMappings.get(serverKey).getMembershipAttribute());
-        if (groupMembershipAttribute != null) {
-          NamingEnumeration<?> attributes = groupMembershipAttribute.getAll();
-          while (attributes.hasMore()) {
-            LdapName name = new LdapName((String) attributes.next()); // NOSONAR
-            Rdn lastRdn = name.getRdn(name.size() - 1);
-            if (idAttribute.equals(lastRdn.getType())) {
-              String groupId = (String) lastRdn.getValue();
-              groups.add(groupId);
+  private void mapGroups(String serverKey, NamingEnumeration<SearchResult> searchResult, Set<String> groups, @Nullable Set<LdapName> groupDns) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    String idAttribute = groupMapping.getIdAttribute();
+    // closed in any case, so that the bind context of the search is given back
+    try {
+      while (hasMore(serverKey, searchResult)) {
+        SearchResult obj = searchResult.next();
+        if (groupMapping.getMembershipAttribute() == null) {
+          groups.add(groupMapping.getGroupId(obj));
+          if (groupDns != null) {
+            groupDns.add(new LdapName(obj.getNameInNamespace()));
+          }
+        } else {
+          Attribute groupMembershipAttribute = obj.getAttributes().get(groupMapping.getMembershipAttribute());
+          if (groupMembershipAttribute != null) {
+            NamingEnumeration<?> attributes = groupMembershipAttribute.getAll();
+            while (attributes.hasMore()) {
+              addGroupId(groups, groupDns, idAttribute, (String) attributes.next());
             }
           }
         }
       }
+    } finally {
+      searchResult.close();
+    }
+  }
+
+  /**
+   * Derives the groups of the user from the attribute of its entry listing the DNs of its groups, when the group
+   * mapping has one.
+   *
+   * @return false if groups have to be searched
+   */
+  private boolean mapMemberOf(String serverKey, SearchResult user, Set<String> groups, @Nullable Set<LdapName> groupDns) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    String memberOfAttribute = groupMapping.getMemberOfAttribute();
+    if (memberOfAttribute == null) {
+      return false;
+    }
+    Attribute memberOf = user.getAttributes().get(memberOfAttribute);
+    if (memberOf == null && hasRangedAttribute(user, memberOfAttribute)) {
+      // too many values to be returned at once, see range retrieval of Active Directory
+      LOG.debug("Too many values of {} for {}, searching groups", memberOfAttribute, user.getNameInNamespace());
+      return false;
+    }
+    if (memberOf == null) {
+      return true;
+    }
+    LdapDnScanner.Base baseDn = groupBaseDns.get(serverKey);
+    NamingEnumeration<?> values = memberOf.getAll();
+    while (values.hasMore()) {
+      String value = (String) values.next();
+      if (baseDn == null || baseDn.contains(value)) {
+        addGroupId(groups, groupDns, groupMapping.getIdAttribute(), value);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Looks up the groups of the user in the index of groups of the server, if any.
+   *
+   * @return false if groups have to be searched
+   */
+  private boolean mapIndexedGroups(String serverKey, SearchResult user, Set<String> groups, @Nullable Set<LdapName> groupDns) {
+    LdapGroupIndex groupIndex = groupIndexes.get(serverKey);
+    if (groupIndex == null || groupDns != null) {
+      // the index does not keep DNs of groups, needed to expand nested groups
+      return false;
+    }
+    Collection<String> indexed = groupIndex.getGroups(user.getNameInNamespace());
+    if (indexed == null) {
+      LOG.debug("Index of groups of {} is not up to date or does not know {}, searching groups", serverKey, user.getNameInNamespace());
+      return false;
+    }
+    groups.addAll(indexed);
+    return true;
+  }
+
+  private static boolean hasRangedAttribute(SearchResult user, String attributeId) throws NamingException {
+    String prefix = attributeId.toLowerCase(Locale.ENGLISH) + ";range=";
+    NamingEnumeration<String> ids = user.getAttributes().getIDs();
+    while (ids.hasMore()) {
+      if (ids.next().toLowerCase(Locale.ENGLISH).startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds the value of the leaf RDN of the group, if its type is the ID attribute of groups. Groups may have thousands
+   * of members, so the DN is only scanned for its leaf RDN.
+   */
+  private static void addGroupId(Set<String> groups, @Nullable Set<LdapName> groupDns, String idAttribute, String groupDn) throws NamingException {
+    // attribute types are case insensitive, e.g. "CN" for Active Directory
+    String groupId = LdapDnScanner.getLeafValue(groupDn, idAttribute);
+    if (groupId != null) {
+      groups.add(groupId);
+      if (groupDns != null) {
+        groupDns.add(new LdapName(groupDn));
+      }
+    }
+  }
+
+  private static boolean hasMore(String serverKey, NamingEnumeration<SearchResult> searchResult) throws NamingException {
+    try {
+      return LdapSearch.hasMore(searchResult);
+    } catch (SizeLimitExceededException e) {
+      LOG.warn("Groups retrieved from {} are truncated by the size limit of the server, paged results should be enabled: {}", serverKey, e.getMessage());
+      return false;
     }
-    return groups;
   }
 
 }
@@ -0,0 +1,273 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Hedged searches for a LDAP server having replicas: when the server does not answer a search within the usual delay,
+ * the same search is sent to the next replica, and the first answer wins.
+ * <ul>
+ *   <li>{@code hedge.urls}: comma separated URLs of replicas, holding the same entries and accepting the same bind</li>
+ *   <li>{@code hedge.percentile}: percentile of the recent latencies of the server after which a search is hedged, 95 by default</li>
+ *   <li>{@code hedge.minDelay}: minimum delay in milliseconds before hedging a search, 50 by default</li>
+ * </ul>
+ * The delay is computed from the latencies of the last minute at most once per second, not for every search.
+ */
+public class LdapHedging {
+
+  private static final Logger LOG = Loggers.get(LdapHedging.class);
+
+  private static final double DEFAULT_PERCENTILE = 95;
+  private static final long DEFAULT_MIN_DELAY = 50;
+  private static final long DELAY_UPDATE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+  private static final long LATENCY_WINDOW = TimeUnit.MINUTES.toNanos(1);
+  // fewer latencies do not tell much about the percentile
+  private static final int MIN_SAMPLES = 20;
+  private static final int MAX_THREADS = 50;
+
+  private final String name;
+  private final List<LdapContextFactory> replicas;
+  private final double percentile;
+  private final long minDelay;
+  // in milliseconds, of the searches of the server since windowStart
+  private final LdapHistogram latencies = new LdapHistogram();
+  private final AtomicLong nextDelayUpdate = new AtomicLong(System.nanoTime());
+  private final ExecutorService executor;
+  private volatile long windowStart = System.nanoTime();
+  private volatile long delay;
+
+  /**
+   * Constructs hedging from Sonar settings.
+   *
+   * @param replicas context factories of the replicas, in the order they should be tried
+   */
+  public LdapHedging(Configuration settings, String settingsPrefix, String name, List<LdapContextFactory> replicas) {
+    this(name, replicas,
+      settings.getDouble(settingsPrefix + ".hedge.percentile").orElse(DEFAULT_PERCENTILE),
+      settings.getLong(settingsPrefix + ".hedge.minDelay").orElse(DEFAULT_MIN_DELAY));
+  }
+
+  LdapHedging(String name, List<LdapContextFactory> replicas, double percentile, long minDelay) {
+    this.name = name;
+    this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+    this.percentile = percentile;
+    this.minDelay = minDelay;
+    this.delay = minDelay;
+    final AtomicInteger threadNumber = new AtomicInteger();
+    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(0, MAX_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+      Thread thread = new Thread(runnable, "ldap-hedged-search-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    },
+      // when overloaded, the search is performed by the calling thread, hence not hedged
+      new ThreadPoolExecutor.CallerRunsPolicy());
+    this.executor = threadPool;
+  }
+
+  /**
+   * Performs the given search on the server, and on its replicas when it is too slow to answer.
+   *
+   * @throws NamingException if the search failed on the server and all replicas
+   */
+  public NamingEnumeration<SearchResult> find(LdapSearch search) throws NamingException {
+    Race race = new Race();
+    List<LdapSearch> searches = new ArrayList<>();
+    searches.add(search);
+    for (LdapContextFactory replica : replicas) {
+      searches.add(search.copy(replica));
+    }
+    long delay = getDelay();
+    int launched = 0;
+    while (true) {
+      if (launched < searches.size()) {
+        launch(race, searches.get(launched), launched == 0);
+        launched++;
+      }
+      NamingEnumeration<SearchResult> winner = race.await(launched, launched < searches.size() ? delay : 0);
+      if (winner != null) {
+        return winner;
+      }
+      if (launched == searches.size() && race.hasFailed(launched)) {
+        throw race.firstError();
+      }
+      if (launched < searches.size() && !race.hasFailed(launched)) {
+        LOG.debug("No answer from {} after {} ms, hedging search to {}", name, delay, searches.get(launched).getContextFactory().getProviderUrl());
+      }
+    }
+  }
+
+  private void launch(final Race race, final LdapSearch search, final boolean primary) {
+    executor.execute(() -> {
+      long start = System.nanoTime();
+      try {
+        NamingEnumeration<SearchResult> result = search.findWithoutHedging();
+        if (primary) {
+          recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        race.succeeded(result);
+      } catch (NamingException e) {
+        race.failed(e);
+      } catch (RuntimeException e) {
+        NamingException ex = new NamingException(e.getMessage());
+        ex.initCause(e);
+        race.failed(ex);
+      }
+    });
+  }
+
+  private void recordLatency(long millis) {
+    latencies.record(millis);
+    long now = System.nanoTime();
+    long next = nextDelayUpdate.get();
+    if (now - next >= 0 && nextDelayUpdate.compareAndSet(next, now + DELAY_UPDATE_INTERVAL)) {
+      updateDelay();
+    }
+  }
+
+  /**
+   * Computes the delay from the recorded latencies, and starts a new window of latencies once the current one is over.
+   */
+  void updateDelay() {
+    if (latencies.getCount() >= MIN_SAMPLES) {
+      delay = Math.max(minDelay, latencies.getPercentile(percentile));
+    }
+    long now = System.nanoTime();
+    if (now - windowStart >= LATENCY_WINDOW) {
+      latencies.reset();
+      windowStart = now;
+    }
+  }
+
+  /**
+   * @return delay in milliseconds after which a search is sent to the next replica
+   */
+  public long getDelay() {
+    return delay;
+  }
+
+  public List<LdapContextFactory> getReplicas() {
+    return replicas;
+  }
+
+  /**
+   * @return latencies in milliseconds of the searches of the server during the current window
+   */
+  public LdapHistogram getLatencies() {
+    return latencies;
+  }
+
+  @Override
+  public String toString() {
+    List<String> urls = new ArrayList<>();
+    for (LdapContextFactory replica : replicas) {
+      urls.add(replica.getProviderUrl());
+    }
+    return getClass().getSimpleName() + "{" +
+      "replicas=" + urls +
+      ", percentile=" + percentile +
+      ", minDelay=" + minDelay +
+      "}";
+  }
+
+  /**
+   * Outcome of the searches of a hedged request. Results arriving once a winner is known are closed, so that their
+   * bind context is given back.
+   */
+  private static final class Race {
+    private NamingEnumeration<SearchResult> winner;
+    private final List<NamingException> errors = new ArrayList<>();
+    private boolean decided;
+
+    void succeeded(NamingEnumeration<SearchResult> result) {
+      synchronized (this) {
+        if (winner == null && !decided) {
+          winner = result;
+          notifyAll();
+          return;
+        }
+      }
+      try {
+        result.close();
+      } catch (NamingException e) {
+        LOG.debug("Unable to close result of hedged search", e);
+      }
+    }
+
+    synchronized void failed(NamingException e) {
+      errors.add(e);
+      notifyAll();
+    }
+
+    synchronized boolean hasFailed(int launched) {
+      return errors.size() >= launched;
+    }
+
+    synchronized NamingException firstError() {
+      return errors.get(0);
+    }
+
+    /**
+     * Waits for a winner, up to the given delay (0 meaning until all launched searches completed).
+     */
+    synchronized NamingEnumeration<SearchResult> await(int launched, long delay) throws InterruptedNamingException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+      try {
+        while (winner == null && !hasFailed(launched)) {
+          if (delay <= 0) {
+            wait();
+          } else {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+              break;
+            }
+            wait(remaining);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        decided = true;
+        InterruptedNamingException ex = new InterruptedNamingException("Interrupted while waiting for hedged search");
+        ex.initCause(e);
+        throw ex;
+      }
+      if (winner != null) {
+        decided = true;
+      }
+      return winner;
+    }
+  }
+
+}
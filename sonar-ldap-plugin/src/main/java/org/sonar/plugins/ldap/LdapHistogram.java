@@ -0,0 +1,137 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non negative values, such as latencies or result sizes, recorded without locking so that it can be
+ * updated on every LDAP operation.
+ * <p>
+ * Like HDR histograms, values are counted in buckets whose width grows with the magnitude of the values: values below
+ * 16 are counted exactly, and every power of two above is split in 8 buckets, so that percentiles are accurate to
+ * 12.5%.
+ */
+public class LdapHistogram {
+
+  private static final int EXACT_VALUES = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // index of the highest bit of EXACT_VALUES
+  private static final int FIRST_EXPONENT = 4;
+  private static final int BUCKETS = EXACT_VALUES + (Long.SIZE - 1 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+  /**
+   * Records a value, negative values being recorded as 0.
+   */
+  public void record(long value) {
+    long v = Math.max(value, 0L);
+    counts.incrementAndGet(bucket(v));
+    count.increment();
+    sum.add(v);
+    max.accumulate(v);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return mean of the recorded values, 0 if none was recorded
+   */
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : ((double) sum.sum() / n);
+  }
+
+  /**
+   * @return highest recorded value, 0 if none was recorded
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return highest value of the bucket under which the given percentage of values were recorded, never more than the
+   * highest recorded value, 0 if none was recorded
+   */
+  public long getPercentile(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValue(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Forgets all recorded values. Values recorded concurrently may be partially forgotten.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0L);
+    }
+    count.reset();
+    sum.reset();
+    max.reset();
+  }
+
+  static int bucket(long value) {
+    if (value < EXACT_VALUES) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return EXACT_VALUES + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+  }
+
+  static long highestValue(int bucket) {
+    if (bucket < EXACT_VALUES) {
+      return bucket;
+    }
+    int exponent = FIRST_EXPONENT + (bucket - EXACT_VALUES) / SUB_BUCKETS;
+    long subBucket = (bucket - EXACT_VALUES) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    long lowest = (SUB_BUCKETS + subBucket) * width;
+    // the last bucket ends at Long.MAX_VALUE
+    return lowest + (width - 1);
+  }
+
+}
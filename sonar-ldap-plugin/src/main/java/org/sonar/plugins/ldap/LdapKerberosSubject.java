@@ -0,0 +1,161 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Kerberos credentials of the bind user of a server using GSSAPI, obtained once from the KDC and shared by all the
+ * bind contexts, so that opening a connection costs a service ticket at most instead of a full login.
+ * <p>
+ * Once 80% of the lifetime of the ticket-granting ticket has elapsed, the next caller logs in again into a new subject
+ * while the other callers go on with the current one, which is never modified as it may be in use by a connection being
+ * opened. Callers only wait for the KDC when there are no valid credentials at all.
+ */
+public class LdapKerberosSubject {
+
+  private static final Logger LOG = Loggers.get(LdapKerberosSubject.class);
+
+  private static final double RENEW_AT = 0.8;
+  // when the ticket-granting ticket can not be found in the subject
+  private static final long DEFAULT_LIFETIME = TimeUnit.HOURS.toMillis(1);
+  private static final String TGT_SERVER_PREFIX = "krbtgt/";
+
+  /**
+   * Logs in to the KDC.
+   */
+  interface Login {
+    Subject login() throws LoginException;
+  }
+
+  private final String name;
+  private final Login login;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final AtomicLong logins = new AtomicLong();
+  private volatile Credentials current;
+
+  public LdapKerberosSubject(String name, String principal, String password, Krb5LoginConfiguration configuration) {
+    this(name, () -> {
+      LoginContext lc = new LoginContext(LdapKerberosSubject.class.getName(), null, new CallbackHandlerImpl(principal, password), configuration);
+      lc.login();
+      return lc.getSubject();
+    });
+  }
+
+  LdapKerberosSubject(String name, Login login) {
+    this.name = name;
+    this.login = login;
+  }
+
+  /**
+   * @return authenticated subject of the bind user, logging in only when there are no valid credentials yet
+   * @throws LoginException if unable to log in
+   */
+  public Subject getSubject() throws LoginException {
+    Credentials credentials = current;
+    long now = System.currentTimeMillis();
+    if (credentials != null && now < credentials.renewAt) {
+      return credentials.subject;
+    }
+    if (credentials != null && now < credentials.expiresAt) {
+      if (!lock.tryLock()) {
+        // being replaced by another caller
+        return credentials.subject;
+      }
+    } else {
+      lock.lock();
+    }
+    try {
+      credentials = current;
+      if (credentials == null || System.currentTimeMillis() >= credentials.renewAt) {
+        credentials = login();
+        current = credentials;
+      }
+      return credentials.subject;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Credentials login() throws LoginException {
+    Subject subject = login.login();
+    logins.incrementAndGet();
+    LOG.debug("Bind user of {} logged in to Kerberos", name);
+    return new Credentials(subject, findTgt(subject));
+  }
+
+  @CheckForNull
+  private static KerberosTicket findTgt(Subject subject) {
+    for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class)) {
+      if (ticket.getServer() != null && ticket.getServer().getName().startsWith(TGT_SERVER_PREFIX)) {
+        return ticket;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Forgets the credentials, e.g. because the KDC rejected them.
+   */
+  public void invalidate() {
+    current = null;
+  }
+
+  /**
+   * @return number of logins to the KDC
+   */
+  public long getLogins() {
+    return logins.get();
+  }
+
+  private static final class Credentials {
+    private final Subject subject;
+    private final KerberosTicket tgt;
+    private final long renewAt;
+    private final long expiresAt;
+
+    private Credentials(Subject subject, @Nullable KerberosTicket tgt) {
+      this.subject = subject;
+      this.tgt = tgt;
+      if (tgt == null || tgt.getEndTime() == null) {
+        long now = System.currentTimeMillis();
+        this.expiresAt = now + DEFAULT_LIFETIME;
+        this.renewAt = now + (long) (DEFAULT_LIFETIME * RENEW_AT);
+      } else {
+        Date startTime = tgt.getStartTime() != null ? tgt.getStartTime() : tgt.getAuthTime();
+        long start = startTime != null ? startTime.getTime() : System.currentTimeMillis();
+        this.expiresAt = tgt.getEndTime().getTime();
+        this.renewAt = start + (long) ((expiresAt - start) * RENEW_AT);
+      }
+    }
+  }
+
+}
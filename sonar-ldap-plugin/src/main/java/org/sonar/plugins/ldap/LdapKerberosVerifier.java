@@ -0,0 +1,324 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Checks passwords of users against the KDC of a server using GSSAPI, on a bounded pool of threads, so that bursts of
+ * logins do not all wait for the KDC at once.
+ * <ul>
+ *   <li>{@code kerberos.verify.threads}: maximum number of concurrent logins to the KDCs, 16 by default</li>
+ *   <li>{@code kerberos.verify.maxPerRealm}: maximum number of concurrent logins to the KDCs of a same realm, by default the number of threads.
+ *   Logins wait for a permit of their realm before using a thread, and are rejected if none is free within the timeout</li>
+ *   <li>{@code kerberos.verify.queueSize}: maximum number of logins waiting for a thread, 500 by default, further logins are rejected</li>
+ *   <li>{@code kerberos.verify.timeout}: maximum time in milliseconds to wait for a login, 30 seconds by default</li>
+ *   <li>{@code kerberos.verify.servicePrincipal} and {@code kerberos.verify.serviceKeyTab}: when both are set, the
+ *   ticket of the user is also checked by requesting a service ticket for this principal and accepting it with the key
+ *   tab, so that a spoofed KDC, which does not know the key of the service, is detected. Setting only one of them is
+ *   a configuration error</li>
+ * </ul>
+ * KDCs of a realm, and the order in which they are tried, are the ones of the Kerberos configuration of the JVM
+ * ({@code krb5.conf}).
+ */
+public class LdapKerberosVerifier {
+
+  private static final Logger LOG = Loggers.get(LdapKerberosVerifier.class);
+
+  private static final int DEFAULT_THREADS = 16;
+  private static final int DEFAULT_QUEUE_SIZE = 500;
+  private static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+  private static final String KRB5_MECHANISM = "1.2.840.113554.1.2.2";
+  private static final String KRB5_PRINCIPAL_NAME = "1.2.840.113554.1.2.2.1";
+
+  /**
+   * Logs in a user to the KDC.
+   */
+  interface Login {
+    LoginContext login(String principal, String password) throws LoginException;
+  }
+
+  private final String name;
+  private final Login login;
+  private final int maxPerRealm;
+  private final long timeout;
+  private final String servicePrincipal;
+  private final LdapKerberosSubject serviceSubject;
+  private final ThreadPoolExecutor executor;
+  private final Map<String, Semaphore> realmPermits = new ConcurrentHashMap<>();
+  private final AtomicLong rejections = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final LdapMetrics metrics;
+
+  /**
+   * Constructs verifier from Sonar settings.
+   *
+   * @param configuration configuration of the logins of users
+   * @param metrics metrics of the server, where logins are recorded
+   */
+  public LdapKerberosVerifier(Configuration settings, String settingsPrefix, String name, Krb5LoginConfiguration configuration, LdapMetrics metrics) {
+    this(name,
+      (principal, password) -> {
+        LoginContext lc = new LoginContext(LdapKerberosVerifier.class.getName(), null, new CallbackHandlerImpl(principal, password), configuration);
+        lc.login();
+        return lc;
+      },
+      settings.getInt(settingsPrefix + ".kerberos.verify.threads").orElse(DEFAULT_THREADS),
+      settings.getInt(settingsPrefix + ".kerberos.verify.maxPerRealm").orElse(0),
+      settings.getInt(settingsPrefix + ".kerberos.verify.queueSize").orElse(DEFAULT_QUEUE_SIZE),
+      settings.getLong(settingsPrefix + ".kerberos.verify.timeout").orElse(DEFAULT_TIMEOUT),
+      settings.get(settingsPrefix + ".kerberos.verify.servicePrincipal").orElse(null),
+      newServiceSubject(settings, settingsPrefix, name),
+      metrics);
+  }
+
+  LdapKerberosVerifier(String name, Login login, int threads, int maxPerRealm, int queueSize, long timeout, @Nullable String servicePrincipal,
+    @Nullable LdapKerberosSubject serviceSubject, LdapMetrics metrics) {
+    this.name = name;
+    this.metrics = metrics;
+    this.login = login;
+    this.maxPerRealm = maxPerRealm > 0 ? maxPerRealm : threads;
+    this.timeout = timeout;
+    if ((servicePrincipal == null) != (serviceSubject == null)) {
+      throw new LdapException("Both kerberos.verify.servicePrincipal and kerberos.verify.serviceKeyTab must be set to verify service tickets of " + name);
+    }
+    this.servicePrincipal = servicePrincipal;
+    this.serviceSubject = serviceSubject;
+    final AtomicInteger threadNumber = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), runnable -> {
+      Thread thread = new Thread(runnable, "ldap-kerberos-verify-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }, new ThreadPoolExecutor.AbortPolicy());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  private static LdapKerberosSubject newServiceSubject(Configuration settings, String settingsPrefix, String name) {
+    String servicePrincipal = settings.get(settingsPrefix + ".kerberos.verify.servicePrincipal").orElse(null);
+    String serviceKeyTab = settings.get(settingsPrefix + ".kerberos.verify.serviceKeyTab").orElse(null);
+    if (servicePrincipal == null && serviceKeyTab == null) {
+      return null;
+    }
+    if (servicePrincipal == null || serviceKeyTab == null) {
+      // otherwise tickets would silently not be verified
+      throw new LdapException("Both " + settingsPrefix + ".kerberos.verify.servicePrincipal and " + settingsPrefix
+        + ".kerberos.verify.serviceKeyTab must be set to verify service tickets of " + name);
+    }
+    Map<String, String> options = new LinkedHashMap<>();
+    options.put("useKeyTab", "true");
+    options.put("keyTab", serviceKeyTab);
+    options.put("principal", servicePrincipal);
+    options.put("storeKey", "true");
+    options.put("doNotPrompt", "true");
+    options.put("isInitiator", "false");
+    return new LdapKerberosSubject(servicePrincipal, servicePrincipal, null, new Krb5LoginConfiguration(options));
+  }
+
+  /**
+   * @return true if the KDC accepted the password of the user, and issued a ticket for the service if configured
+   */
+  public boolean verify(final String principal, final String password) {
+    long start = System.nanoTime();
+    // The permit of the realm is taken before using a thread of the pool, so that logins waiting for a slow realm do
+    // not hold threads needed by the other realms
+    Semaphore permits = realmPermits.computeIfAbsent(getRealm(principal), realm -> new Semaphore(maxPerRealm));
+    try {
+      if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        return reject(principal, start, "Too many concurrent Kerberos logins to realm of {} in {}, login rejected");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    // Claimed either by the task when it starts, or by this thread when giving up on a task which has not started yet,
+    // so that the permit is released exactly once
+    AtomicBoolean claimed = new AtomicBoolean();
+    Future<Boolean> result;
+    try {
+      result = executor.submit(() -> {
+        if (!claimed.compareAndSet(false, true)) {
+          return false;
+        }
+        try {
+          return verifyNow(principal, password);
+        } finally {
+          permits.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      return reject(principal, start, "Too many concurrent Kerberos logins to {} in {}, login rejected");
+    }
+    try {
+      long remaining = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      boolean valid = result.get(Math.max(remaining, 0L), TimeUnit.MILLISECONDS);
+      metrics.record(LdapMetrics.Operation.KERBEROS_LOGIN, valid ? LdapMetrics.Outcome.SUCCESS : LdapMetrics.Outcome.FAILURE, start, -1);
+      return valid;
+    } catch (TimeoutException e) {
+      timeouts.incrementAndGet();
+      metrics.record(LdapMetrics.Operation.KERBEROS_LOGIN, LdapMetrics.Outcome.TIMEOUT, start, -1);
+      giveUp(result, claimed, permits);
+      LOG.warn("No answer of KDC of {} after {} ms for login of {}", name, timeout, principal);
+      return false;
+    } catch (ExecutionException e) {
+      metrics.record(LdapMetrics.Operation.KERBEROS_LOGIN, LdapMetrics.Outcome.FAILURE, start, -1);
+      LOG.warn("Unable to check password of " + principal + " in " + name, e.getCause());
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      giveUp(result, claimed, permits);
+      return false;
+    }
+  }
+
+  private boolean reject(String principal, long start, String message) {
+    rejections.incrementAndGet();
+    metrics.record(LdapMetrics.Operation.KERBEROS_LOGIN, LdapMetrics.Outcome.FAILURE, start, -1);
+    LOG.warn(message, principal, name);
+    return false;
+  }
+
+  private static void giveUp(Future<Boolean> result, AtomicBoolean claimed, Semaphore permits) {
+    if (claimed.compareAndSet(false, true)) {
+      // still queued, the task will not run
+      permits.release();
+    }
+    result.cancel(true);
+  }
+
+  private boolean verifyNow(String principal, String password) {
+    LoginContext lc;
+    try {
+      lc = login.login(principal, password);
+    } catch (LoginException e) {
+      // Bad username: Client not found in Kerberos database
+      // Bad password: Integrity check on decrypted field failed
+      LOG.debug("Password not valid for {} in server {}: {}", principal, name, e.getMessage());
+      return false;
+    }
+    try {
+      return serviceSubject == null || checkServiceTicket(principal, lc.getSubject());
+    } finally {
+      try {
+        lc.logout();
+      } catch (LoginException e) {
+        LOG.warn("Logout fails", e);
+      }
+    }
+  }
+
+  /**
+   * Requests a ticket for the service with the credentials of the user, and accepts it with the key of the service.
+   */
+  private boolean checkServiceTicket(String principal, Subject user) {
+    try {
+      final Oid mechanism = new Oid(KRB5_MECHANISM);
+      byte[] token = Subject.doAs(user, (PrivilegedExceptionAction<byte[]>) () -> {
+        GSSManager manager = GSSManager.getInstance();
+        GSSName service = manager.createName(servicePrincipal, new Oid(KRB5_PRINCIPAL_NAME));
+        GSSContext context = manager.createContext(service, mechanism, null, GSSContext.DEFAULT_LIFETIME);
+        try {
+          return context.initSecContext(new byte[0], 0, 0);
+        } finally {
+          context.dispose();
+        }
+      });
+      Subject.doAs(serviceSubject.getSubject(), (PrivilegedExceptionAction<Void>) () -> {
+        GSSContext context = GSSManager.getInstance().createContext((GSSCredential) null);
+        try {
+          context.acceptSecContext(token, 0, token.length);
+        } finally {
+          context.dispose();
+        }
+        return null;
+      });
+      return true;
+    } catch (GSSException | LoginException | PrivilegedActionException e) {
+      LOG.warn("Ticket of {} for service {} could not be verified, the KDC of {} may be spoofed: {}", principal, servicePrincipal, name, e.getMessage());
+      return false;
+    }
+  }
+
+  private static String getRealm(String principal) {
+    int at = principal.lastIndexOf('@');
+    // default realm of the Kerberos configuration otherwise
+    return at < 0 ? "" : principal.substring(at + 1);
+  }
+
+  /**
+   * @return number of logins waiting for a thread
+   */
+  public int getPendingLogins() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * @return number of logins rejected because too many were waiting, overall or for their realm
+   */
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  /**
+   * @return number of logins abandoned after the timeout
+   */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" +
+      "threads=" + executor.getMaximumPoolSize() +
+      ", maxPerRealm=" + maxPerRealm +
+      ", timeout=" + timeout +
+      ", servicePrincipal=" + servicePrincipal +
+      "}";
+  }
+
+}
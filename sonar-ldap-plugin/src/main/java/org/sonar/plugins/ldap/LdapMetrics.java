@@ -0,0 +1,330 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.CheckForNull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Latencies, outcomes and result sizes of the operations on a LDAP server, recorded without locking.
+ * Once {@link #register(String) registered}, the metrics of every operation are exposed through JMX as
+ * {@code org.sonar.plugins.ldap:type=Operation,server=<server key>,operation=<operation>}.
+ */
+public class LdapMetrics {
+
+  private static final Logger LOG = Loggers.get(LdapMetrics.class);
+
+  static final String JMX_DOMAIN = "org.sonar.plugins.ldap";
+
+  public enum Operation {
+    USER_SEARCH("userSearch"),
+    GROUP_SEARCH("groupSearch"),
+    /**
+     * Searches which are neither for users nor for groups
+     */
+    SEARCH("search"),
+    /**
+     * Connections of the bind user
+     */
+    BIND("bind"),
+    /**
+     * Connections with the credentials of users, i.e. password checks
+     */
+    USER_BIND("userBind"),
+    KERBEROS_LOGIN("kerberosLogin");
+
+    private final String key;
+
+    Operation(String key) {
+      this.key = key;
+    }
+
+    public String getKey() {
+      return key;
+    }
+  }
+
+  public enum Outcome {
+    SUCCESS, FAILURE, NOT_FOUND, TIMEOUT
+  }
+
+  private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+  // in microseconds
+  private final LdapHistogram tlsHandshakes = new LdapHistogram();
+  private final List<ObjectName> registered = new ArrayList<>();
+  private String server;
+
+  public LdapMetrics() {
+    for (Operation operation : Operation.values()) {
+      operations.put(operation, new OperationMetrics(operation));
+    }
+  }
+
+  /**
+   * Records an operation.
+   *
+   * @param startNanos value of {@link System#nanoTime()} when the operation started
+   * @param resultSize number of entries returned by a search, negative if not applicable
+   */
+  public void record(Operation operation, Outcome outcome, long startNanos, long resultSize) {
+    operations.get(operation).record(outcome, System.nanoTime() - startNanos, resultSize);
+  }
+
+  /**
+   * Records a failed operation, as a timeout if the exception denotes one.
+   *
+   * @param startNanos value of {@link System#nanoTime()} when the operation started
+   */
+  public void recordFailure(Operation operation, long startNanos, Exception e) {
+    record(operation, isTimeout(e) ? Outcome.TIMEOUT : Outcome.FAILURE, startNanos, -1);
+  }
+
+  /**
+   * Records a successful StartTLS handshake.
+   *
+   * @param startNanos value of {@link System#nanoTime()} when the StartTLS request was sent
+   */
+  public void recordTlsHandshake(long startNanos) {
+    tlsHandshakes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+  }
+
+  /**
+   * @return time in microseconds taken by StartTLS handshakes
+   */
+  public LdapHistogram getTlsHandshakes() {
+    return tlsHandshakes;
+  }
+
+  public LdapOperationMetricsMXBean get(Operation operation) {
+    return operations.get(operation);
+  }
+
+  /**
+   * @return true for search time limits, read timeouts and connect timeouts
+   */
+  static boolean isTimeout(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof TimeLimitExceededException || cause instanceof SocketTimeoutException
+        || (cause instanceof NamingException && LdapSearch.isReadTimeout((NamingException) cause))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Exposes the metrics through the platform MBean server, replacing the ones previously registered for the same server
+   * key. Failures are logged, as metrics are not essential to authentication.
+   */
+  public synchronized void register(String serverKey) {
+    unregister();
+    this.server = serverKey;
+    for (OperationMetrics metrics : operations.values()) {
+      ObjectName name = registerMBean(metrics, objectName("Operation", serverKey) + ",operation=" + metrics.operation.getKey());
+      if (name != null) {
+        registered.add(name);
+      }
+    }
+  }
+
+  public synchronized void unregister() {
+    for (ObjectName name : registered) {
+      unregisterMBean(name);
+    }
+    registered.clear();
+  }
+
+  static String objectName(String type, String serverKey) {
+    return JMX_DOMAIN + ":type=" + type + ",server=" + quoteIfNeeded(serverKey);
+  }
+
+  /**
+   * Registers the MBean in the platform MBean server, replacing the one previously registered with the same name.
+   *
+   * @return name of the registered MBean, or null if unable to register it
+   */
+  @CheckForNull
+  static ObjectName registerMBean(Object mbean, String objectName) {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName name = new ObjectName(objectName);
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+      mbeanServer.registerMBean(mbean, name);
+      return name;
+    } catch (JMException e) {
+      LOG.warn("Unable to expose {} through JMX: {}", objectName, e.getMessage());
+      return null;
+    }
+  }
+
+  static void unregisterMBean(ObjectName name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      LOG.debug("Unable to unregister {}: {}", name, e.getMessage());
+    }
+  }
+
+  static String quoteIfNeeded(String value) {
+    for (char c : value.toCharArray()) {
+      if (",=:\"*?\n".indexOf(c) >= 0) {
+        return ObjectName.quote(value);
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append('{');
+    String separator = "";
+    for (OperationMetrics metrics : operations.values()) {
+      sb.append(separator).append(metrics);
+      separator = ", ";
+    }
+    return sb.append('}').toString();
+  }
+
+  private final class OperationMetrics implements LdapOperationMetricsMXBean {
+    private final Operation operation;
+    private final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+    // in microseconds
+    private final LdapHistogram latencies = new LdapHistogram();
+    private final LdapHistogram resultSizes = new LdapHistogram();
+
+    private OperationMetrics(Operation operation) {
+      this.operation = operation;
+      for (Outcome outcome : Outcome.values()) {
+        outcomes.put(outcome, new LongAdder());
+      }
+    }
+
+    private void record(Outcome outcome, long nanos, long resultSize) {
+      outcomes.get(outcome).increment();
+      latencies.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+      if (resultSize >= 0) {
+        resultSizes.record(resultSize);
+      }
+    }
+
+    @Override
+    public String getServer() {
+      return server;
+    }
+
+    @Override
+    public String getOperation() {
+      return operation.getKey();
+    }
+
+    @Override
+    public long getSuccessCount() {
+      return outcomes.get(Outcome.SUCCESS).sum();
+    }
+
+    @Override
+    public long getFailureCount() {
+      return outcomes.get(Outcome.FAILURE).sum();
+    }
+
+    @Override
+    public long getNotFoundCount() {
+      return outcomes.get(Outcome.NOT_FOUND).sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+      return outcomes.get(Outcome.TIMEOUT).sum();
+    }
+
+    @Override
+    public double getLatencyMean() {
+      return latencies.getMean() / 1000;
+    }
+
+    @Override
+    public double getLatency50thPercentile() {
+      return latencies.getPercentile(50) / 1000d;
+    }
+
+    @Override
+    public double getLatency95thPercentile() {
+      return latencies.getPercentile(95) / 1000d;
+    }
+
+    @Override
+    public double getLatency99thPercentile() {
+      return latencies.getPercentile(99) / 1000d;
+    }
+
+    @Override
+    public double getLatencyMax() {
+      return latencies.getMax() / 1000d;
+    }
+
+    @Override
+    public double getResultSizeMean() {
+      return resultSizes.getMean();
+    }
+
+    @Override
+    public long getResultSize99thPercentile() {
+      return resultSizes.getPercentile(99);
+    }
+
+    @Override
+    public long getResultSizeMax() {
+      return resultSizes.getMax();
+    }
+
+    @Override
+    public void reset() {
+      for (LongAdder adder : outcomes.values()) {
+        adder.reset();
+      }
+      latencies.reset();
+      resultSizes.reset();
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ENGLISH, "%s={success=%d, failure=%d, notFound=%d, timeout=%d, p99=%.1fms}", operation.getKey(),
+        getSuccessCount(), getFailureCount(), getNotFoundCount(), getTimeoutCount(), getLatency99thPercentile());
+    }
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Resolves the groups a user is member of through other groups, see {@link LdapGroupMapping.NestedGroups}.
+ */
+public class LdapNestedGroups {
+
+  private static final Logger LOG = Loggers.get(LdapNestedGroups.class);
+
+  /**
+   * LDAP_MATCHING_RULE_IN_CHAIN of Active Directory, which walks the chain of ancestry of the entry.
+   */
+  static final String MATCHING_RULE_IN_CHAIN = "1.2.840.113556.1.4.1941";
+
+  /**
+   * Maximum number of groups whose parents are searched by a single request.
+   */
+  static final int BATCH_SIZE = 50;
+
+  private final Map<String, LdapContextFactory> contextFactories;
+  private final Map<String, LdapGroupMapping> groupMappings;
+
+  public LdapNestedGroups(Map<String, LdapContextFactory> contextFactories, Map<String, LdapGroupMapping> groupMappings) {
+    this.contextFactories = contextFactories;
+    this.groupMappings = groupMappings;
+  }
+
+  /**
+   * Searches all the groups the user is member of, directly or not, with a single search using
+   * {@link #MATCHING_RULE_IN_CHAIN}.
+   */
+  public void findInChain(LdapSession session, String serverKey, SearchResult user, Set<String> groups) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    NamingEnumeration<SearchResult> result = new LdapSearch(contextFactories.get(serverKey))
+      .setBaseDn(groupMapping.getBaseDn())
+      .setRequest("(" + groupMapping.getNestedMemberAttribute() + ":" + MATCHING_RULE_IN_CHAIN + ":={0})")
+      .setParameters(user.getNameInNamespace())
+      .returns(groupMapping.getIdAttribute())
+      .setPageSize(groupMapping.getPageSize())
+      .setOperation(LdapMetrics.Operation.GROUP_SEARCH)
+      .setSession(session)
+      .find();
+    try {
+      while (LdapSearch.hasMore(result)) {
+        SearchResult group = result.next();
+        groups.add(groupMapping.getGroupId(group));
+      }
+    } finally {
+      result.close();
+    }
+  }
+
+  /**
+   * Adds the parents of the given groups, then their parents and so on, up to the maximum depth of the group mapping.
+   * Parents of all the groups of a level are searched at once, by batches of {@link #BATCH_SIZE} groups.
+   *
+   * @param groupDns DNs of the groups the user is directly member of
+   */
+  public void expand(LdapSession session, String serverKey, Collection<LdapName> groupDns, Set<String> groups) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    // groups already seen, so that cycles are not followed
+    Set<LdapName> visited = new HashSet<>(groupDns);
+    List<LdapName> level = new ArrayList<>(groupDns);
+    int depth = 0;
+    while (!level.isEmpty() && depth < groupMapping.getNestedMaxDepth()) {
+      depth++;
+      List<LdapName> parents = new ArrayList<>();
+      for (int from = 0; from < level.size(); from += BATCH_SIZE) {
+        List<LdapName> batch = level.subList(from, Math.min(level.size(), from + BATCH_SIZE));
+        searchParents(session, serverKey, batch, visited, parents, groups);
+      }
+      LOG.debug("{} parent groups found at depth {} in {}", parents.size(), depth, serverKey);
+      level = parents;
+    }
+    if (!level.isEmpty()) {
+      LOG.warn("Nested groups of {} are deeper than {} levels, parents of {} are ignored", serverKey, groupMapping.getNestedMaxDepth(), level);
+    }
+  }
+
+  private void searchParents(LdapSession session, String serverKey, List<LdapName> children, Set<LdapName> visited,
+    List<LdapName> parents, Set<String> groups) throws NamingException {
+    LdapGroupMapping groupMapping = groupMappings.get(serverKey);
+    StringBuilder request = new StringBuilder("(|");
+    String[] parameters = new String[children.size()];
+    for (int i = 0; i < parameters.length; i++) {
+      request.append('(').append(groupMapping.getNestedMemberAttribute()).append("={").append(i).append("})");
+      parameters[i] = children.get(i).toString();
+    }
+    request.append(')');
+    NamingEnumeration<SearchResult> result = new LdapSearch(contextFactories.get(serverKey))
+      .setBaseDn(groupMapping.getBaseDn())
+      .setRequest(request.toString())
+      .setParameters(parameters)
+      .returns(groupMapping.getIdAttribute())
+      .setPageSize(groupMapping.getPageSize())
+      .setOperation(LdapMetrics.Operation.GROUP_SEARCH)
+      .setSession(session)
+      .find();
+    try {
+      while (LdapSearch.hasMore(result)) {
+        SearchResult group = result.next();
+        LdapName dn = new LdapName(group.getNameInNamespace());
+        if (visited.add(dn)) {
+          parents.add(dn);
+          groups.add(groupMapping.getGroupId(group));
+        }
+      }
+    } finally {
+      result.close();
+    }
+  }
+
+}
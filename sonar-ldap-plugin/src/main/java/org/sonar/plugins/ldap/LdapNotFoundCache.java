@@ -0,0 +1,138 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.sonar.api.config.Configuration;
+
+/**
+ * Short-lived cache of logins not found in a LDAP server, so that logins which do not exist in any server (e.g. local
+ * SonarQube accounts) do not cost a subtree search per server each time.
+ * <ul>
+ *   <li>{@code ldap.notFoundCache.ttl}: time in milliseconds during which a login is known to be absent, 0 (default) to disable the cache</li>
+ *   <li>{@code ldap.notFoundCache.maxEntries}: maximum number of cached logins, least recently used ones are evicted</li>
+ * </ul>
+ */
+public class LdapNotFoundCache {
+
+  private static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  private final long ttl;
+  private final Map<String, Long> notFound;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Constructs cache from Sonar settings.
+   */
+  public LdapNotFoundCache(Configuration settings) {
+    this(settings.getLong("ldap.notFoundCache.ttl").orElse(0L),
+      settings.getInt("ldap.notFoundCache.maxEntries").orElse(DEFAULT_MAX_ENTRIES));
+  }
+
+  LdapNotFoundCache(long ttl, final int maxEntries) {
+    this.ttl = ttl;
+    // Access ordered, so that the eldest entry is the least recently used one
+    this.notFound = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0;
+  }
+
+  /**
+   * @return true if the login was not found in the server less than TTL ago
+   */
+  public boolean isNotFound(String serverKey, String login) {
+    if (!isEnabled()) {
+      return false;
+    }
+    String key = key(serverKey, login);
+    synchronized (notFound) {
+      Long since = notFound.get(key);
+      if (since != null && System.nanoTime() - since <= TimeUnit.MILLISECONDS.toNanos(ttl)) {
+        hits.incrementAndGet();
+        return true;
+      }
+      if (since != null) {
+        notFound.remove(key);
+      }
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Records that the login does not exist in the server.
+   */
+  public void putNotFound(String serverKey, String login) {
+    if (!isEnabled()) {
+      return;
+    }
+    synchronized (notFound) {
+      notFound.put(key(serverKey, login), System.nanoTime());
+    }
+  }
+
+  /**
+   * Forgets that the login does not exist in the server.
+   */
+  public void invalidate(String serverKey, String login) {
+    synchronized (notFound) {
+      notFound.remove(key(serverKey, login));
+    }
+  }
+
+  /**
+   * Forgets everything, e.g. when changes in the servers may have been missed.
+   */
+  public void invalidateAll() {
+    synchronized (notFound) {
+      notFound.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (notFound) {
+      return notFound.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private static String key(String serverKey, String login) {
+    return serverKey + '\u0000' + login;
+  }
+
+}
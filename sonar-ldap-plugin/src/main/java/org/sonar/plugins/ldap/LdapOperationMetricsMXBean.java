@@ -0,0 +1,64 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+/**
+ * Metrics of one kind of operation on a LDAP server, exposed through JMX by {@link LdapMetrics}.
+ * Latencies are in milliseconds, counters are cumulative since startup or since the last reset.
+ */
+public interface LdapOperationMetricsMXBean {
+
+  String getServer();
+
+  String getOperation();
+
+  long getSuccessCount();
+
+  long getFailureCount();
+
+  /**
+   * @return number of searches which did not return any entry
+   */
+  long getNotFoundCount();
+
+  long getTimeoutCount();
+
+  double getLatencyMean();
+
+  double getLatency50thPercentile();
+
+  double getLatency95thPercentile();
+
+  double getLatency99thPercentile();
+
+  double getLatencyMax();
+
+  /**
+   * @return mean number of entries returned by searches
+   */
+  double getResultSizeMean();
+
+  long getResultSize99thPercentile();
+
+  long getResultSizeMax();
+
+  void reset();
+
+}
@@ -20,6 +20,7 @@
 package org.sonar.plugins.ldap;
 
 import java.util.Map;
+import org.sonar.api.Startable;
 import org.sonar.api.security.Authenticator;
 import org.sonar.api.security.ExternalGroupsProvider;
 import org.sonar.api.security.ExternalUsersProvider;
@@ -28,12 +29,13 @@ import org.sonar.api.security.SecurityRealm;
 /**
  * @author Evgeny Mandrikov
  */
-public class LdapRealm extends SecurityRealm {
+public class LdapRealm extends SecurityRealm implements Startable {
   public static final String REALM_NAME = "LDAP-PLUGIN";
 
   private LdapUsersProvider usersProvider;
   private LdapGroupsProvider groupsProvider;
   private LdapAuthenticator authenticator;
+  private LdapUserLookup userLookup;
   private final LdapSettingsManager settingsManager;
 
   public LdapRealm(LdapSettingsManager settingsManager) {
@@ -54,15 +56,57 @@ public class LdapRealm extends SecurityRealm {
   public void init() {
     Map<String, LdapContextFactory> contextFactories = settingsManager.getContextFactories();
     Map<String, LdapUserMapping> userMappings = settingsManager.getUserMappings();
-    usersProvider = new LdapUsersProvider(contextFactories, userMappings);
-    authenticator = new LdapAuthenticator(contextFactories, userMappings);
     Map<String, LdapGroupMapping> groupMappings = settingsManager.getGroupMappings();
+    // Shared, so that a login searches the user only once per server
+    userLookup = new LdapUserLookup(contextFactories, userMappings, groupMappings, settingsManager.getNotFoundCache(),
+      settingsManager.getUserCache(), settingsManager.getParallelLookupThreads());
+    usersProvider = new LdapUsersProvider(contextFactories, userMappings, userLookup);
+    authenticator = new LdapAuthenticator(contextFactories, userMappings, userLookup, settingsManager.getCredentialCache());
     if (!groupMappings.isEmpty()) {
-      groupsProvider = new LdapGroupsProvider(contextFactories, userMappings, groupMappings);
+      Map<String, LdapGroupIndex> groupIndexes = settingsManager.getGroupIndexes();
+      groupsProvider = new LdapGroupsProvider(contextFactories, userMappings, groupMappings, userLookup, settingsManager.getGroupCache(), groupIndexes);
+      for (LdapGroupIndex groupIndex : groupIndexes.values()) {
+        groupIndex.start();
+      }
     }
-    for (LdapContextFactory contextFactory : contextFactories.values()) {
-      contextFactory.testConnection();
+    for (Map.Entry<String, LdapContextFactory> entry : contextFactories.entrySet()) {
+      entry.getValue().getMetrics().register(entry.getKey());
+      new LdapServerMonitor(entry.getKey(), entry.getValue(), settingsManager.getCredentialCache(), settingsManager.getNotFoundCache(),
+        settingsManager.getUserCache(), settingsManager.getGroupCache()).register();
+      entry.getValue().testConnection();
     }
+    if (settingsManager.getUserCache().isPreWarmEnabled()) {
+      userLookup.startPreWarm();
+    }
+    for (LdapChangeListener changeListener : settingsManager.getChangeListeners().values()) {
+      changeListener.start();
+    }
+  }
+
+  /**
+   * Does nothing, the realm being initialized by {@link #init()} once selected by SonarQube.
+   */
+  @Override
+  public void start() {
+    // nothing to do
+  }
+
+  /**
+   * Stops the background threads started by {@link #init()}.
+   */
+  @Override
+  public void stop() {
+    if (userLookup == null) {
+      // not initialized
+      return;
+    }
+    for (LdapChangeListener changeListener : settingsManager.getChangeListeners().values()) {
+      changeListener.stop();
+    }
+    for (LdapGroupIndex groupIndex : settingsManager.getGroupIndexes().values()) {
+      groupIndex.stop();
+    }
+    userLookup.stop();
   }
 
   @Override
@@ -19,13 +19,23 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.NoSuchElementException;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.naming.CommunicationException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.PartialResultException;
+import javax.naming.TimeLimitExceededException;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 
@@ -38,6 +48,8 @@ public class LdapSearch {
 
   private static final Logger LOG = Loggers.get(LdapSearch.class);
 
+  private static final String READ_TIMEOUT_MESSAGE = "LDAP response read timed out";
+
   private final LdapContextFactory contextFactory;
 
   private String baseDn;
@@ -45,6 +57,10 @@ public class LdapSearch {
   private String request;
   private String[] parameters;
   private String[] returningAttributes;
+  private long countLimit;
+  private int pageSize;
+  private LdapMetrics.Operation operation = LdapMetrics.Operation.SEARCH;
+  private LdapSession session;
 
   public LdapSearch(LdapContextFactory contextFactory) {
     this.contextFactory = contextFactory;
@@ -115,24 +131,202 @@ public class LdapSearch {
   }
 
   /**
+   * Sets the maximum number of entries to return, 0 (default) for no limit.
+   */
+  public LdapSearch setCountLimit(long countLimit) {
+    this.countLimit = countLimit;
+    return this;
+  }
+
+  public long getCountLimit() {
+    return countLimit;
+  }
+
+  /**
+   * Sets the number of entries requested at once using the paged results control (RFC 2696), 0 (default) to request
+   * all entries at once. Pages are requested one after the other while the results are read.
+   */
+  public LdapSearch setPageSize(int pageSize) {
+    this.pageSize = pageSize;
+    return this;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Sets the operation under which the search is recorded in the {@link LdapMetrics} of the server,
+   * {@link LdapMetrics.Operation#SEARCH} by default.
+   */
+  public LdapSearch setOperation(LdapMetrics.Operation operation) {
+    this.operation = operation;
+    return this;
+  }
+
+  public LdapMetrics.Operation getOperation() {
+    return operation;
+  }
+
+  /**
+   * Sets the session whose bind context should be used, instead of a dedicated one.
+   */
+  public LdapSearch setSession(@Nullable LdapSession session) {
+    this.session = session;
+    return this;
+  }
+
+  @CheckForNull
+  public LdapSession getSession() {
+    return session;
+  }
+
+  public LdapContextFactory getContextFactory() {
+    return contextFactory;
+  }
+
+  /**
+   * Unless a session is set, the bind context used by the search is given back to the {@link LdapContextFactory} once
+   * the returned enumeration is exhausted or closed.
+   * When the server has replicas, the search is hedged by {@link LdapHedging}, which always uses dedicated bind contexts.
+   * The search is recorded in the {@link LdapMetrics} of the server once all results have been read.
+   *
+   * @throws TimeLimitExceededException if the search did not complete within the time limit or read timeout of the server
    * @throws NamingException if unable to perform search
    */
   public NamingEnumeration<SearchResult> find() throws NamingException {
     LOG.debug("Search: {}", this);
-    NamingEnumeration<SearchResult> result;
-    InitialDirContext context = null;
-    boolean threw = false;
+    long start = System.nanoTime();
     try {
-      context = contextFactory.createBindContext();
-      SearchControls controls = new SearchControls();
-      controls.setSearchScope(scope);
-      controls.setReturningAttributes(returningAttributes);
-      result = context.search(baseDn, request, parameters, controls);
-      threw = true;
-    } finally {
-      ContextHelper.close(context, threw);
+      return new MeteredEnumeration(start, findUnmetered());
+    } catch (NamingException e) {
+      contextFactory.getMetrics().recordFailure(operation, start, e);
+      throw e;
+    }
+  }
+
+  private NamingEnumeration<SearchResult> findUnmetered() throws NamingException {
+    LdapHedging hedging = contextFactory.getHedging();
+    if (hedging != null) {
+      return hedging.find(this);
+    }
+    if (session != null) {
+      try {
+        InitialDirContext context = session.getBindContext(contextFactory);
+        return new SearchResultEnumeration(context, false, search(context, null));
+      } catch (NamingException e) {
+        if (isBroken(e)) {
+          session.invalidate(contextFactory);
+        }
+        throw translate(e);
+      }
+    }
+    return findWithoutHedging();
+  }
+
+  /**
+   * Performs the search on a dedicated bind context of the server, ignoring session and replicas.
+   */
+  NamingEnumeration<SearchResult> findWithoutHedging() throws NamingException {
+    InitialDirContext context = contextFactory.borrowBindContext();
+    try {
+      return new SearchResultEnumeration(context, true, search(context, null));
+    } catch (NamingException e) {
+      contextFactory.releaseBindContext(context, isBroken(e));
+      throw translate(e);
+    } catch (RuntimeException e) {
+      contextFactory.releaseBindContext(context, true);
+      throw e;
+    }
+  }
+
+  /**
+   * @return same search, performed on another server
+   */
+  LdapSearch copy(LdapContextFactory otherContextFactory) {
+    return new LdapSearch(otherContextFactory)
+      .setBaseDn(baseDn)
+      .setScope(scope)
+      .setRequest(request)
+      .setParameters(parameters)
+      .returns(returningAttributes)
+      .setCountLimit(countLimit)
+      .setPageSize(pageSize)
+      .setOperation(operation);
+  }
+
+  /**
+   * @param cookie cookie of the previous page, or null to request the first one
+   */
+  private NamingEnumeration<SearchResult> search(InitialDirContext context, @Nullable byte[] cookie) throws NamingException {
+    if (isPaged(context)) {
+      try {
+        // Non critical, so that servers not supporting paged results return all entries at once
+        ((LdapContext) context).setRequestControls(new Control[] {new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)});
+      } catch (IOException e) {
+        NamingException ex = new NamingException("Unable to request paged results");
+        ex.initCause(e);
+        throw ex;
+      }
+    }
+    SearchControls controls = new SearchControls();
+    controls.setSearchScope(scope);
+    controls.setReturningAttributes(returningAttributes);
+    controls.setTimeLimit(contextFactory.getSearchTimeLimit());
+    controls.setCountLimit(countLimit);
+    try {
+      return context.search(baseDn, request, parameters, controls);
+    } catch (NamingException e) {
+      if (isPaged(context)) {
+        resetRequestControls(context);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Removes the paged results control from the context, which is reused by other searches.
+   *
+   * @return false if unable to do so
+   */
+  private static boolean resetRequestControls(InitialDirContext context) {
+    try {
+      ((LdapContext) context).setRequestControls(null);
+      return true;
+    } catch (NamingException e) {
+      LOG.debug("Unable to reset request controls: {}", e.getMessage());
+      return false;
+    }
+  }
+
+  private boolean isPaged(InitialDirContext context) {
+    return pageSize > 0 && context instanceof LdapContext;
+  }
+
+  /**
+   * The connection can not be reused after a communication failure, nor after a read timeout since the response might
+   * still come.
+   */
+  private static boolean isBroken(NamingException e) {
+    return e instanceof CommunicationException || isReadTimeout(e);
+  }
+
+  static boolean isReadTimeout(NamingException e) {
+    // JNDI reports read timeouts as a plain NamingException
+    return e.getClass() == NamingException.class && e.getMessage() != null && e.getMessage().startsWith(READ_TIMEOUT_MESSAGE);
+  }
+
+  /**
+   * Surfaces read timeouts as {@link TimeLimitExceededException}, like searches exceeding the time limit, so that
+   * {@link LdapMetrics} counts both as timeouts.
+   */
+  private static NamingException translate(NamingException e) {
+    if (isReadTimeout(e)) {
+      TimeLimitExceededException ex = new TimeLimitExceededException(e.getMessage());
+      ex.setRootCause(e);
+      return ex;
     }
-    return result;
+    return e;
   }
 
   /**
@@ -140,18 +334,27 @@ public class LdapSearch {
    * @throws NamingException if unable to perform search, or non unique result
    */
   public SearchResult findUnique() throws NamingException {
-    NamingEnumeration<SearchResult> result = find();
-    if (hasMore(result)) {
-      SearchResult obj = result.next();
-      if (!hasMore(result)) {
-        return obj;
+    LdapSearch search = this;
+    if (countLimit == 0) {
+      // two results are enough to detect that the result is not unique
+      search = copy(contextFactory).setSession(session).setCountLimit(2);
+    }
+    NamingEnumeration<SearchResult> result = search.find();
+    try {
+      if (hasMore(result)) {
+        SearchResult obj = result.next();
+        if (!hasMore(result)) {
+          return obj;
+        }
+        throw new NamingException("Non unique result for " + search);
       }
-      throw new NamingException("Non unique result for " + toString());
+      return null;
+    } finally {
+      result.close();
     }
-    return null;
   }
 
-  private static boolean hasMore(NamingEnumeration<SearchResult> result) throws NamingException {
+  static boolean hasMore(NamingEnumeration<SearchResult> result) throws NamingException {
     try {
       return result.hasMore();
     } catch (PartialResultException e) {
@@ -188,4 +391,216 @@ public class LdapSearch {
     }
   }
 
+  /**
+   * Requests the following pages of paged searches, gives back the bind context to the {@link LdapContextFactory} as
+   * soon as all results have been read, unless it belongs to the session, and surfaces timeouts as
+   * {@link TimeLimitExceededException}.
+   */
+  private final class SearchResultEnumeration implements NamingEnumeration<SearchResult> {
+    private final InitialDirContext context;
+    private final boolean dedicated;
+    private NamingEnumeration<SearchResult> delegate;
+    private boolean released;
+
+    /**
+     * @param dedicated true if the context must be given back once done, false if it belongs to the session
+     */
+    private SearchResultEnumeration(InitialDirContext context, boolean dedicated, NamingEnumeration<SearchResult> delegate) {
+      this.context = context;
+      this.dedicated = dedicated;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean hasMore() throws NamingException {
+      if (released) {
+        return false;
+      }
+      boolean hasMore;
+      try {
+        hasMore = delegate.hasMore();
+        while (!hasMore && nextPage()) {
+          hasMore = delegate.hasMore();
+        }
+      } catch (NamingException e) {
+        release(isBroken(e));
+        throw translate(e);
+      }
+      if (!hasMore) {
+        release(false);
+      }
+      return hasMore;
+    }
+
+    /**
+     * @return true if the following page has been requested
+     */
+    private boolean nextPage() throws NamingException {
+      if (!isPaged(context)) {
+        return false;
+      }
+      byte[] cookie = null;
+      Control[] controls = ((LdapContext) context).getResponseControls();
+      if (controls != null) {
+        for (Control control : controls) {
+          if (control instanceof PagedResultsResponseControl) {
+            cookie = ((PagedResultsResponseControl) control).getCookie();
+          }
+        }
+      }
+      if (cookie == null || cookie.length == 0) {
+        return false;
+      }
+      LOG.debug("Requesting next page of {}", LdapSearch.this);
+      delegate.close();
+      delegate = search(context, cookie);
+      return true;
+    }
+
+    @Override
+    public SearchResult next() throws NamingException {
+      try {
+        return delegate.next();
+      } catch (NamingException e) {
+        release(isBroken(e));
+        throw translate(e);
+      }
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      // Same contract as the JNDI implementation, which swallows exceptions
+      try {
+        return hasMore();
+      } catch (NamingException e) {
+        LOG.debug("Search aborted: {}", e.getMessage());
+        return false;
+      }
+    }
+
+    @Override
+    public SearchResult nextElement() {
+      try {
+        return next();
+      } catch (NamingException e) {
+        throw new NoSuchElementException(e.toString());
+      }
+    }
+
+    @Override
+    public void close() throws NamingException {
+      if (released) {
+        return;
+      }
+      try {
+        delegate.close();
+      } finally {
+        release(false);
+      }
+    }
+
+    private void release(boolean broken) {
+      if (released) {
+        return;
+      }
+      released = true;
+      boolean reusable = !broken && (!isPaged(context) || resetRequestControls(context));
+      if (dedicated) {
+        contextFactory.releaseBindContext(context, !reusable);
+      } else if (!reusable && session != null) {
+        session.invalidate(contextFactory);
+      }
+    }
+  }
+
+  /**
+   * Records the search in the {@link LdapMetrics} of the server once all results have been read, the enumeration has
+   * been closed or reading failed.
+   */
+  private final class MeteredEnumeration implements NamingEnumeration<SearchResult> {
+    private final long start;
+    private final NamingEnumeration<SearchResult> delegate;
+    private long count;
+    private boolean recorded;
+
+    private MeteredEnumeration(long start, NamingEnumeration<SearchResult> delegate) {
+      this.start = start;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean hasMore() throws NamingException {
+      boolean hasMore;
+      try {
+        hasMore = delegate.hasMore();
+      } catch (PartialResultException e) {
+        // not a failure, see #hasMore(NamingEnumeration)
+        recordCompletion();
+        throw e;
+      } catch (NamingException e) {
+        recordFailure(e);
+        throw e;
+      }
+      if (!hasMore) {
+        recordCompletion();
+      }
+      return hasMore;
+    }
+
+    @Override
+    public SearchResult next() throws NamingException {
+      SearchResult result;
+      try {
+        result = delegate.next();
+      } catch (NamingException e) {
+        recordFailure(e);
+        throw e;
+      }
+      count++;
+      return result;
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      // Same contract as the JNDI implementation, which swallows exceptions
+      try {
+        return hasMore();
+      } catch (NamingException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public SearchResult nextElement() {
+      try {
+        return next();
+      } catch (NamingException e) {
+        throw new NoSuchElementException(e.toString());
+      }
+    }
+
+    @Override
+    public void close() throws NamingException {
+      try {
+        delegate.close();
+      } finally {
+        recordCompletion();
+      }
+    }
+
+    private void recordCompletion() {
+      if (!recorded) {
+        recorded = true;
+        contextFactory.getMetrics().record(operation, count == 0 ? LdapMetrics.Outcome.NOT_FOUND : LdapMetrics.Outcome.SUCCESS, start, count);
+      }
+    }
+
+    private void recordFailure(NamingException e) {
+      if (!recorded) {
+        recorded = true;
+        contextFactory.getMetrics().recordFailure(operation, start, e);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,87 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+/**
+ * Connection pool and caches of a LDAP server, exposed through JMX by {@link LdapServerMonitor}, in order to tell
+ * whether slow logins are caused by connection setup, pool starvation or the server itself.
+ * Times are in milliseconds. Caches are shared by all servers, so their hit ratios are the same for all servers.
+ */
+public interface LdapServerMXBean {
+
+  String getServer();
+
+  String getUrl();
+
+  boolean isPoolEnabled();
+
+  int getActiveConnections();
+
+  int getIdleConnections();
+
+  /**
+   * @return number of threads waiting for a connection of the pool
+   */
+  int getPendingBorrowers();
+
+  long getCreatedConnections();
+
+  long getDestroyedConnections();
+
+  /**
+   * @return mean time to open a connection of the pool, including StartTLS and bind
+   */
+  double getAverageConnectTime();
+
+  double getAverageTlsHandshakeTime();
+
+  /**
+   * @return state of the circuit breaker of the server
+   */
+  String getCircuitState();
+
+  double getCredentialCacheHitRatio();
+
+  double getNotFoundCacheHitRatio();
+
+  double getUserCacheHitRatio();
+
+  double getGroupCacheHitRatio();
+
+  /**
+   * Closes the idle connections of the pool, and the borrowed ones once released.
+   *
+   * @return number of connections closed at once
+   */
+  int drain();
+
+  /**
+   * Opens connections until the pool holds the given number of them, up to its preferred size.
+   *
+   * @return number of opened connections
+   */
+  int warm(int connections);
+
+  /**
+   * Drains the pool, forgets its statistics and opens its minimum number of connections again.
+   */
+  void reset();
+
+}
@@ -0,0 +1,211 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import javax.annotation.CheckForNull;
+import javax.management.ObjectName;
+import javax.naming.NamingException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Exposes the connection pool and the caches of a LDAP server through JMX as
+ * {@code org.sonar.plugins.ldap:type=Server,server=<server key>}.
+ */
+public class LdapServerMonitor implements LdapServerMXBean {
+
+  private static final Logger LOG = Loggers.get(LdapServerMonitor.class);
+
+  private final String serverKey;
+  private final LdapContextFactory contextFactory;
+  private final LdapCredentialCache credentialCache;
+  private final LdapNotFoundCache notFoundCache;
+  private final LdapUserCache userCache;
+  private final LdapGroupCache groupCache;
+  private ObjectName registered;
+
+  public LdapServerMonitor(String serverKey, LdapContextFactory contextFactory, LdapCredentialCache credentialCache, LdapNotFoundCache notFoundCache,
+    LdapUserCache userCache, LdapGroupCache groupCache) {
+    this.serverKey = serverKey;
+    this.contextFactory = contextFactory;
+    this.credentialCache = credentialCache;
+    this.notFoundCache = notFoundCache;
+    this.userCache = userCache;
+    this.groupCache = groupCache;
+  }
+
+  /**
+   * Exposes this monitor through the platform MBean server, replacing the one previously registered for the same
+   * server key.
+   */
+  public synchronized void register() {
+    unregister();
+    registered = LdapMetrics.registerMBean(this, LdapMetrics.objectName("Server", serverKey));
+  }
+
+  public synchronized void unregister() {
+    if (registered != null) {
+      LdapMetrics.unregisterMBean(registered);
+      registered = null;
+    }
+  }
+
+  @Override
+  public String getServer() {
+    return serverKey;
+  }
+
+  @Override
+  public String getUrl() {
+    return contextFactory.getProviderUrl();
+  }
+
+  @Override
+  public boolean isPoolEnabled() {
+    return contextFactory.getPool() != null;
+  }
+
+  @Override
+  public int getActiveConnections() {
+    LdapConnectionPool pool = contextFactory.getPool();
+    return pool == null ? 0 : pool.getActiveCount();
+  }
+
+  @Override
+  public int getIdleConnections() {
+    LdapConnectionPool pool = contextFactory.getPool();
+    return pool == null ? 0 : pool.getIdleCount();
+  }
+
+  @Override
+  public int getPendingBorrowers() {
+    LdapConnectionPool pool = contextFactory.getPool();
+    return pool == null ? 0 : pool.getPendingCount();
+  }
+
+  @Override
+  public long getCreatedConnections() {
+    LdapConnectionPool pool = contextFactory.getPool();
+    return pool == null ? 0 : pool.getCreatedCount();
+  }
+
+  @Override
+  public long getDestroyedConnections() {
+    LdapConnectionPool pool = contextFactory.getPool();
+    return pool == null ? 0 : pool.getDestroyedCount();
+  }
+
+  @Override
+  public double getAverageConnectTime() {
+    LdapConnectionPool pool = contextFactory.getPool();
+    return pool == null ? 0 : (pool.getConnectTimes().getMean() / 1000);
+  }
+
+  @Override
+  public double getAverageTlsHandshakeTime() {
+    return contextFactory.getMetrics().getTlsHandshakes().getMean() / 1000;
+  }
+
+  @Override
+  public String getCircuitState() {
+    return contextFactory.getCircuitBreaker().getState().name();
+  }
+
+  @Override
+  public double getCredentialCacheHitRatio() {
+    return ratio(credentialCache.getHits(), credentialCache.getMisses());
+  }
+
+  @Override
+  public double getNotFoundCacheHitRatio() {
+    return ratio(notFoundCache.getHits(), notFoundCache.getMisses());
+  }
+
+  @Override
+  public double getUserCacheHitRatio() {
+    return ratio(userCache.getHits(), userCache.getMisses());
+  }
+
+  @Override
+  public double getGroupCacheHitRatio() {
+    return ratio(groupCache.getHits(), groupCache.getMisses());
+  }
+
+  /**
+   * @return 0 rather than NaN when the cache was never used, as not all JMX clients support NaN
+   */
+  private static double ratio(long hits, long misses) {
+    long total = hits + misses;
+    return total == 0 ? 0 : ((double) hits / total);
+  }
+
+  @Override
+  public int drain() {
+    LdapConnectionPool pool = getPoolOrFail();
+    int closed = pool.drain();
+    LOG.info("LDAP connection pool of {} drained, {} idle connections closed", serverKey, closed);
+    return closed;
+  }
+
+  @Override
+  public int warm(int connections) {
+    LdapConnectionPool pool = getPoolOrFail();
+    try {
+      int opened = pool.warm(connections);
+      LOG.info("LDAP connection pool of {} warmed, {} connections opened", serverKey, opened);
+      return opened;
+    } catch (NamingException e) {
+      throw failure("Unable to warm LDAP connection pool of " + serverKey, e);
+    }
+  }
+
+  @Override
+  public void reset() {
+    LdapConnectionPool pool = getPoolOrFail();
+    try {
+      pool.reset();
+      LOG.info("LDAP connection pool of {} reset", serverKey);
+    } catch (NamingException e) {
+      throw failure("Unable to reset LDAP connection pool of " + serverKey, e);
+    }
+  }
+
+  private LdapConnectionPool getPoolOrFail() {
+    LdapConnectionPool pool = contextFactory.getPool();
+    if (pool == null) {
+      throw new IllegalStateException("LDAP connection pool is disabled for " + serverKey);
+    }
+    return pool;
+  }
+
+  /**
+   * The cause is logged rather than chained, as remote JMX clients may not have the classes of its chain.
+   */
+  private static IllegalStateException failure(String message, NamingException e) {
+    LOG.warn(message, e);
+    return new IllegalStateException(message + ": " + e.getMessage());
+  }
+
+  @CheckForNull
+  synchronized ObjectName getObjectName() {
+    return registered;
+  }
+
+}
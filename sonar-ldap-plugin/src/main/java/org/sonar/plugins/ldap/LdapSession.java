@@ -0,0 +1,88 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import javax.naming.NamingException;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Request scoped holder of bind contexts: all searches performed with the same session on a given LDAP server share
+ * a single bind context, which is given back to its {@link LdapContextFactory} when the session is closed.
+ * <pre>
+ * LdapSession session = new LdapSession();
+ * try {
+ *   SearchResult user = userMapping.createSearch(contextFactory, login).setSession(session).findUnique();
+ *   NamingEnumeration&lt;SearchResult&gt; groups = groupMapping.createSearch(contextFactory, user).setSession(session).find();
+ * } finally {
+ *   session.close();
+ * }
+ * </pre>
+ * Users resolved by the {@link LdapUserLookup} are kept for the whole session as well.
+ * A session is not thread-safe and must not outlive the request which opened it.
+ */
+public class LdapSession {
+
+  private final Map<LdapContextFactory, InitialDirContext> contexts = new IdentityHashMap<>();
+  private final Map<String, LdapUserLookup.Login> logins = new HashMap<>();
+
+  /**
+   * Returns the bind context of this session for the given server, borrowing it on first use.
+   *
+   * @throws NamingException if unable to open the context
+   */
+  public InitialDirContext getBindContext(LdapContextFactory contextFactory) throws NamingException {
+    InitialDirContext context = contexts.get(contextFactory);
+    if (context == null) {
+      context = contextFactory.borrowBindContext();
+      contexts.put(contextFactory, context);
+    }
+    return context;
+  }
+
+  /**
+   * Discards the bind context of the given server, e.g. because its connection is broken.
+   * Next search on this server will use a new one.
+   */
+  public void invalidate(LdapContextFactory contextFactory) {
+    InitialDirContext context = contexts.remove(contextFactory);
+    if (context != null) {
+      contextFactory.releaseBindContext(context, true);
+    }
+  }
+
+  LdapUserLookup.Login getLogin(String login) {
+    return logins.computeIfAbsent(login, LdapUserLookup.Login::new);
+  }
+
+  /**
+   * Gives back all bind contexts of this session.
+   */
+  public void close() {
+    for (Map.Entry<LdapContextFactory, InitialDirContext> entry : contexts.entrySet()) {
+      entry.getKey().releaseBindContext(entry.getValue(), false);
+    }
+    contexts.clear();
+    logins.clear();
+  }
+
+}
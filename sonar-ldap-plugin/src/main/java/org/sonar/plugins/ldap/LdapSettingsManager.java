@@ -46,6 +46,12 @@ public class LdapSettingsManager {
   private Map<String, LdapUserMapping> userMappings = null;
   private Map<String, LdapGroupMapping> groupMappings = null;
   private Map<String, LdapContextFactory> contextFactories;
+  private LdapCredentialCache credentialCache;
+  private LdapNotFoundCache notFoundCache;
+  private LdapUserCache userCache;
+  private LdapGroupCache groupCache;
+  private Map<String, LdapGroupIndex> groupIndexes;
+  private Map<String, LdapChangeListener> changeListeners;
 
   /**
    * Create an instance of the settings manager.
@@ -147,6 +153,103 @@ public class LdapSettingsManager {
     return contextFactories;
   }
 
+  /**
+   * Get the @link{LdapCredentialCache} configured in the settings, shared by all LDAP servers.
+   *
+   * @return The cache, which is disabled unless 'ldap.authenticationCache.ttl' is set.
+   */
+  public LdapCredentialCache getCredentialCache() {
+    if (credentialCache == null) {
+      credentialCache = new LdapCredentialCache(settings);
+    }
+    return credentialCache;
+  }
+
+  /**
+   * Get the @link{LdapNotFoundCache} configured in the settings, shared by all LDAP servers.
+   *
+   * @return The cache, which is disabled unless 'ldap.notFoundCache.ttl' is set.
+   */
+  public LdapNotFoundCache getNotFoundCache() {
+    if (notFoundCache == null) {
+      notFoundCache = new LdapNotFoundCache(settings);
+    }
+    return notFoundCache;
+  }
+
+  /**
+   * Get the @link{LdapUserCache} configured in the settings, shared by all LDAP servers.
+   *
+   * @return The cache, which is disabled unless 'ldap.userCache.ttl' is set.
+   */
+  public LdapUserCache getUserCache() {
+    if (userCache == null) {
+      userCache = new LdapUserCache(settings);
+    }
+    return userCache;
+  }
+
+  /**
+   * Get the @link{LdapGroupIndex}es of the servers whose group mapping enables it, not started yet.
+   *
+   * @return A @link{Map} with the @link{LdapGroupIndex} objects, keyed by server key.
+   */
+  public Map<String, LdapGroupIndex> getGroupIndexes() {
+    if (groupIndexes == null) {
+      groupIndexes = new LinkedHashMap<>();
+      for (Map.Entry<String, LdapGroupMapping> entry : getGroupMappings().entrySet()) {
+        if (entry.getValue().isIndexEnabled()) {
+          groupIndexes.put(entry.getKey(), new LdapGroupIndex(entry.getKey(), getContextFactories().get(entry.getKey()), entry.getValue()));
+        }
+      }
+    }
+    return groupIndexes;
+  }
+
+  /**
+   * Get the @link{LdapChangeListener}s of the servers whose settings enable it, not started yet.
+   *
+   * @return A @link{Map} with the @link{LdapChangeListener} objects, keyed by server key.
+   */
+  public Map<String, LdapChangeListener> getChangeListeners() {
+    if (changeListeners == null) {
+      changeListeners = new LinkedHashMap<>();
+      for (Map.Entry<String, LdapContextFactory> entry : getContextFactories().entrySet()) {
+        String serverKey = entry.getKey();
+        // servers auto-discovered for the single server configuration share its settings
+        String settingsPrefix = settings.getStringArray(LDAP_SERVERS_PROPERTY).length > 0 ? (LDAP_PROPERTY_PREFIX + "." + serverKey) : LDAP_PROPERTY_PREFIX;
+        LdapUserMapping userMapping = getUserMappings().get(serverKey);
+        LdapGroupMapping groupMapping = getGroupMappings().get(serverKey);
+        if (settings.getBoolean(settingsPrefix + ".changeListener.enabled").orElse(false) && (userMapping != null || groupMapping != null)) {
+          changeListeners.put(serverKey, new LdapChangeListener(settings, settingsPrefix, serverKey, entry.getValue(), userMapping, groupMapping,
+            getCredentialCache(), getNotFoundCache(), getUserCache(), getGroupCache(), getGroupIndexes().get(serverKey)));
+        }
+      }
+    }
+    return changeListeners;
+  }
+
+  /**
+   * Get the @link{LdapGroupCache} configured in the settings, shared by all LDAP servers.
+   *
+   * @return The cache, which is disabled unless 'ldap.groupCache.ttl' is set.
+   */
+  public LdapGroupCache getGroupCache() {
+    if (groupCache == null) {
+      groupCache = new LdapGroupCache(settings);
+    }
+    return groupCache;
+  }
+
+  /**
+   * Get the number of threads used to search a user in all LDAP servers at once.
+   *
+   * @return The value of 'ldap.parallelLookup.threads', 0 (default) when servers are searched one after the other.
+   */
+  public int getParallelLookupThreads() {
+    return settings.getInt("ldap.parallelLookup.threads").orElse(0);
+  }
+
   private void initSimpleLdapConfiguration() {
     String realm = settings.get(LDAP_PROPERTY_PREFIX + ".realm").orElse(null);
     String ldapUrlKey = LDAP_PROPERTY_PREFIX + ".url";
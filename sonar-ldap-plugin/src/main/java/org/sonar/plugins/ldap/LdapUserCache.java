@@ -0,0 +1,165 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.naming.directory.SearchResult;
+import org.sonar.api.config.Configuration;
+
+/**
+ * Cache of the entries of users found in LDAP servers, with the attributes returned by {@link LdapUserLookup}, so
+ * that a login does not always cost a subtree search per server to find the DN and details of the user. Credentials
+ * are still verified by the server, or by the {@link LdapCredentialCache}.
+ * <ul>
+ *   <li>{@code ldap.userCache.ttl}: time in milliseconds during which an entry is reused, 0 (default) to disable the cache</li>
+ *   <li>{@code ldap.userCache.maxEntries}: maximum number of cached entries, least recently used ones are evicted, 10000 by default</li>
+ *   <li>{@code ldap.userCache.preWarm}: true to fill the cache with all the users of the servers at startup, false by default</li>
+ * </ul>
+ */
+public class LdapUserCache {
+
+  private static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+  private final long ttl;
+  private final int maxEntries;
+  private final boolean preWarm;
+  private final Map<String, Entry> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Constructs cache from Sonar settings.
+   */
+  public LdapUserCache(Configuration settings) {
+    this(settings.getLong("ldap.userCache.ttl").orElse(0L),
+      settings.getInt("ldap.userCache.maxEntries").orElse(DEFAULT_MAX_ENTRIES),
+      settings.getBoolean("ldap.userCache.preWarm").orElse(false));
+  }
+
+  LdapUserCache(long ttl, final int maxEntries, boolean preWarm) {
+    this.ttl = ttl;
+    this.maxEntries = maxEntries;
+    this.preWarm = preWarm;
+    // Access ordered, so that the eldest entry is the least recently used one
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0;
+  }
+
+  public boolean isPreWarmEnabled() {
+    return isEnabled() && preWarm;
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @return entry of the user found in the server less than TTL ago, or null
+   */
+  @CheckForNull
+  public SearchResult get(String serverKey, String login) {
+    if (!isEnabled()) {
+      return null;
+    }
+    String key = key(serverKey, login);
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && System.nanoTime() - entry.loadedAt <= TimeUnit.MILLISECONDS.toNanos(ttl)) {
+        hits.incrementAndGet();
+        return entry.user;
+      }
+      if (entry != null) {
+        entries.remove(key);
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public void put(String serverKey, String login, SearchResult user) {
+    if (!isEnabled()) {
+      return;
+    }
+    synchronized (entries) {
+      entries.put(key(serverKey, login), new Entry(user, System.nanoTime()));
+    }
+  }
+
+  /**
+   * Forgets the entry of the user, e.g. because it changed in the server.
+   */
+  public void invalidate(String serverKey, String login) {
+    synchronized (entries) {
+      entries.remove(key(serverKey, login));
+    }
+  }
+
+  /**
+   * Forgets everything, e.g. when changes in the servers may have been missed.
+   */
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private static String key(String serverKey, String login) {
+    // logins are compared ignoring case by the servers
+    return serverKey + '\u0000' + login.toLowerCase(Locale.ENGLISH);
+  }
+
+  private static final class Entry {
+    private final SearchResult user;
+    private final long loadedAt;
+
+    private Entry(SearchResult user, long loadedAt) {
+      this.user = user;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+}
@@ -0,0 +1,355 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+/**
+ * Resolves the entry of a user with all the attributes needed by {@link LdapAuthenticator}, {@link LdapUsersProvider}
+ * and {@link LdapGroupsProvider}, so that a single user search is performed per server during a login.
+ * <p>
+ * SonarQube calls the authenticator and the providers one after the other for a login, each with its own
+ * {@link LdapSession}, so found entries are also kept for {@link #LOGIN_DURATION} milliseconds, whether or not the
+ * {@link LdapUserCache} is enabled. The entry of a user is forgotten as soon as its password is rejected.
+ * <p>
+ * When parallel resolution is enabled ({@code ldap.parallelLookup.threads} greater than 0), the user is searched at once
+ * in the requested server and all the following ones, on a bounded pool of threads. Results are still considered in the
+ * configured order of servers: once the user is found in a server, searches in the following servers are cancelled.
+ */
+public class LdapUserLookup {
+
+  private static final Logger LOG = Loggers.get(LdapUserLookup.class);
+
+  static final long LOGIN_DURATION = TimeUnit.SECONDS.toMillis(5);
+  private static final int MAX_LOGINS = 1000;
+  private static final int PRE_WARM_PAGE_SIZE = 1000;
+
+  private final Map<String, LdapContextFactory> contextFactories;
+  private final Map<String, LdapUserMapping> userMappings;
+  private final LdapNotFoundCache notFoundCache;
+  private final LdapUserCache userCache;
+  // entries found during the logins in progress
+  private final LdapUserCache recentLogins = new LdapUserCache(LOGIN_DURATION, MAX_LOGINS, false);
+  private final Map<String, String[]> returningAttributes = new HashMap<>();
+  private final ExecutorService executor;
+
+  public LdapUserLookup(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    Map<String, LdapGroupMapping> groupMappings) {
+    this(contextFactories, userMappings, groupMappings, new LdapNotFoundCache(0, 0));
+  }
+
+  public LdapUserLookup(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    Map<String, LdapGroupMapping> groupMappings, LdapNotFoundCache notFoundCache) {
+    this(contextFactories, userMappings, groupMappings, notFoundCache, 0);
+  }
+
+  /**
+   * @param parallelism number of threads used to search all servers at once, 0 to search them one after the other
+   */
+  public LdapUserLookup(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    Map<String, LdapGroupMapping> groupMappings, LdapNotFoundCache notFoundCache, int parallelism) {
+    this(contextFactories, userMappings, groupMappings, notFoundCache, new LdapUserCache(0, 0, false), parallelism);
+  }
+
+  /**
+   * @param parallelism number of threads used to search all servers at once, 0 to search them one after the other
+   */
+  public LdapUserLookup(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings,
+    Map<String, LdapGroupMapping> groupMappings, LdapNotFoundCache notFoundCache, LdapUserCache userCache, int parallelism) {
+    this.contextFactories = contextFactories;
+    this.userMappings = userMappings;
+    this.notFoundCache = notFoundCache;
+    this.userCache = userCache;
+    this.executor = parallelism > 0 && userMappings.size() > 1 ? newExecutor(parallelism) : null;
+    for (Map.Entry<String, LdapUserMapping> entry : userMappings.entrySet()) {
+      Set<String> attributes = new LinkedHashSet<>();
+      attributes.add(entry.getValue().getEmailAttribute());
+      attributes.add(entry.getValue().getRealNameAttribute());
+      LdapGroupMapping groupMapping = groupMappings.get(entry.getKey());
+      if (groupMapping != null) {
+        Collections.addAll(attributes, groupMapping.getRequiredUserAttributes());
+        // not an attribute, but the name of the entry
+        attributes.remove("dn");
+        if (groupMapping.getMemberOfAttribute() != null) {
+          attributes.add(groupMapping.getMemberOfAttribute());
+        }
+      }
+      returningAttributes.put(entry.getKey(), attributes.toArray(new String[0]));
+    }
+  }
+
+  /**
+   * @return entry of the user in the given server, possibly from the {@link LdapUserCache}, or null if not found,
+   * possibly recently according to the {@link LdapNotFoundCache}
+   * @throws NamingException if unable to perform search, or non unique result
+   */
+  @CheckForNull
+  public SearchResult find(LdapSession session, String serverKey, String login) throws NamingException {
+    Login current = session.getLogin(login);
+    NamingException error = current.errors.remove(serverKey);
+    if (error != null) {
+      throw error;
+    }
+    if (current.entries.containsKey(serverKey)) {
+      LOG.debug("User {} already resolved in {}", login, serverKey);
+      return current.entries.get(serverKey);
+    }
+    if (notFoundCache.isNotFound(serverKey, login)) {
+      LOG.debug("User {} recently not found in {}", login, serverKey);
+      current.entries.put(serverKey, null);
+      return null;
+    }
+    SearchResult cached = recentLogins.get(serverKey, login);
+    if (cached != null) {
+      LOG.debug("User {} already resolved in {}", login, serverKey);
+      current.entries.put(serverKey, cached);
+      return cached;
+    }
+    cached = userCache.get(serverKey, login);
+    if (cached != null) {
+      LOG.debug("User {} found in cache of {}", login, serverKey);
+      current.entries.put(serverKey, cached);
+      return cached;
+    }
+    if (executor != null && !executor.isShutdown()) {
+      resolveInParallel(current, serverKey);
+      error = current.errors.remove(serverKey);
+      if (error != null) {
+        throw error;
+      }
+      return current.entries.get(serverKey);
+    }
+    SearchResult result = search(session, serverKey, login);
+    current.entries.put(serverKey, result);
+    if (result == null) {
+      notFoundCache.putNotFound(serverKey, login);
+    } else {
+      recentLogins.put(serverKey, login, result);
+      userCache.put(serverKey, login, result);
+    }
+    return result;
+  }
+
+  /**
+   * Forgets the entry of the user found in the given server by the logins in progress, e.g. because its password was
+   * rejected.
+   */
+  public void forget(String serverKey, String login) {
+    recentLogins.invalidate(serverKey, login);
+  }
+
+  private SearchResult search(@Nullable LdapSession session, String serverKey, String login) throws NamingException {
+    return userMappings.get(serverKey).createSearch(contextFactories.get(serverKey), login)
+      .returns(getReturningAttributes(serverKey))
+      .setSession(session)
+      .findUnique();
+  }
+
+  /**
+   * Searches the user at once in the given server and all the following ones which are not resolved yet, until found.
+   * Searches run on their own bind contexts, since a {@link LdapSession} can not be shared between threads.
+   */
+  private void resolveInParallel(Login current, String fromServerKey) {
+    final String login = current.login;
+    Map<String, Future<SearchResult>> searches = new LinkedHashMap<>();
+    boolean started = false;
+    for (final String serverKey : userMappings.keySet()) {
+      started |= serverKey.equals(fromServerKey);
+      if (started && !current.entries.containsKey(serverKey) && (searches.isEmpty() || !notFoundCache.isNotFound(serverKey, login))) {
+        searches.put(serverKey, executor.submit(() -> search(null, serverKey, login)));
+      }
+    }
+    boolean found = false;
+    for (Map.Entry<String, Future<SearchResult>> entry : searches.entrySet()) {
+      String serverKey = entry.getKey();
+      if (found) {
+        // a server with higher precedence already answered
+        entry.getValue().cancel(true);
+        continue;
+      }
+      try {
+        SearchResult result = entry.getValue().get();
+        current.entries.put(serverKey, result);
+        if (result == null) {
+          notFoundCache.putNotFound(serverKey, login);
+        } else {
+          recentLogins.put(serverKey, login, result);
+          userCache.put(serverKey, login, result);
+          found = true;
+        }
+      } catch (ExecutionException e) {
+        current.errors.put(serverKey, toNamingException(e.getCause()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        InterruptedNamingException ex = new InterruptedNamingException("Interrupted while searching user " + login + " in " + serverKey);
+        ex.initCause(e);
+        current.errors.put(serverKey, ex);
+        found = true;
+      }
+    }
+  }
+
+  private static NamingException toNamingException(Throwable cause) {
+    if (cause instanceof NamingException) {
+      return (NamingException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    throw new IllegalStateException(cause);
+  }
+
+  private static ExecutorService newExecutor(int parallelism) {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<Runnable>(parallelism * 10), runnable -> {
+        Thread thread = new Thread(runnable, "ldap-user-lookup-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      },
+      // when overloaded, or stopped meanwhile, the search is performed by the thread processing the login
+      (runnable, pool) -> runnable.run());
+    threadPool.allowCoreThreadTimeOut(true);
+    return threadPool;
+  }
+
+  /**
+   * Stops the threads of the parallel lookup, if any, letting the searches in progress complete. Users are then
+   * searched sequentially.
+   */
+  public void stop() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Fills the {@link LdapUserCache} with all the users of all servers in the background, so that the first logins after
+   * startup do not all search the servers at once. Logins meanwhile search users not cached yet as usual.
+   */
+  public void startPreWarm() {
+    Thread thread = new Thread(() -> {
+      for (String serverKey : userMappings.keySet()) {
+        try {
+          preWarm(serverKey);
+        } catch (NamingException | RuntimeException e) {
+          LOG.warn("Unable to pre-warm cache of users of {}: {}", serverKey, e.getMessage());
+        }
+      }
+    }, "ldap-user-pre-warm");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Caches all the users of the server matching the user request, whatever their login, until the cache is full.
+   *
+   * @return number of cached users
+   */
+  int preWarm(String serverKey) throws NamingException {
+    LdapUserMapping userMapping = userMappings.get(serverKey);
+    String loginAttribute = userMapping.getLoginAttribute();
+    if (loginAttribute == null) {
+      LOG.info("Users of {} are not pre-warmed, because the user request does not compare the login to a single attribute", serverKey);
+      return 0;
+    }
+    long start = System.nanoTime();
+    Set<String> attributes = new LinkedHashSet<>();
+    Collections.addAll(attributes, returningAttributes.get(serverKey));
+    attributes.add(loginAttribute);
+    NamingEnumeration<SearchResult> result = new LdapSearch(contextFactories.get(serverKey))
+      .setBaseDn(userMapping.getBaseDn())
+      // all users instead of the one having a given login
+      .setRequest(userMapping.getRequest().replace("{0}", "*"))
+      .returns(attributes.toArray(new String[0]))
+      .setPageSize(PRE_WARM_PAGE_SIZE)
+      .setOperation(LdapMetrics.Operation.USER_SEARCH)
+      .find();
+    int count = 0;
+    try {
+      while (count < userCache.getMaxEntries() && LdapSearch.hasMore(result)) {
+        SearchResult user = result.next();
+        Attribute login = user.getAttributes().get(loginAttribute);
+        if (login == null) {
+          continue;
+        }
+        NamingEnumeration<?> logins = login.getAll();
+        while (logins.hasMore()) {
+          userCache.put(serverKey, (String) logins.next(), user);
+        }
+        count++;
+        if (count % PRE_WARM_PAGE_SIZE == 0) {
+          LOG.info("{} users of {} pre-warmed", count, serverKey);
+        }
+      }
+    } finally {
+      result.close();
+    }
+    if (count >= userCache.getMaxEntries()) {
+      LOG.warn("Cache of users is full after pre-warming {} users of {}, see property 'ldap.userCache.maxEntries'", count, serverKey);
+    }
+    LOG.info("{} users of {} pre-warmed in {} ms", count, serverKey, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return count;
+  }
+
+  /**
+   * Attributes returned by the user search of the given server.
+   */
+  public String[] getReturningAttributes(String serverKey) {
+    return returningAttributes.get(serverKey).clone();
+  }
+
+  /**
+   * Users resolved for a given login during a {@link LdapSession}.
+   */
+  static final class Login {
+    private final String login;
+    // null value when the user does not exist in the server
+    private final Map<String, SearchResult> entries = new LinkedHashMap<>();
+    // errors of parallel searches, thrown when the entry of their server is requested
+    private final Map<String, NamingException> errors = new HashMap<>();
+
+    Login(String login) {
+      this.login = login;
+    }
+  }
+
+}
@@ -19,6 +19,10 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
 import org.apache.commons.lang.StringUtils;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.utils.log.Logger;
@@ -36,11 +40,15 @@ public class LdapUserMapping {
   private static final String DEFAULT_NAME_ATTRIBUTE = "cn";
   private static final String DEFAULT_EMAIL_ATTRIBUTE = "mail";
   private static final String DEFAULT_REQUEST = "(&(objectClass=inetOrgPerson)(uid={login}))";
+  private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final Pattern LOGIN_ASSERTION = Pattern.compile("\\(\\s*([\\w.;-]+)\\s*=\\s*\\{0\\}\\s*\\)");
 
   private final String baseDn;
   private final String request;
   private final String realNameAttribute;
   private final String emailAttribute;
+  private final String loginAttribute;
+  private final int batchSize;
 
   /**
    * Constructs mapping from Sonar settings.
@@ -78,6 +86,10 @@ public class LdapUserMapping {
     }
     req = StringUtils.replace(req, "{login}", "{0}");
     this.request = req;
+    Matcher matcher = LOGIN_ASSERTION.matcher(req);
+    // the login must be compared to a single attribute, so that it can be replaced by several logins
+    this.loginAttribute = StringUtils.countMatches(req, "{0}") == 1 && matcher.find() ? matcher.group(1) : null;
+    this.batchSize = settings.getInt(settingsPrefix + ".user.batchSize").orElse(DEFAULT_BATCH_SIZE);
   }
 
   /**
@@ -87,7 +99,34 @@ public class LdapUserMapping {
     return new LdapSearch(contextFactory)
       .setBaseDn(getBaseDn())
       .setRequest(getRequest())
-      .setParameters(username);
+      .setParameters(username)
+      .setOperation(LdapMetrics.Operation.USER_SEARCH);
+  }
+
+  /**
+   * Search for several users at once, or null if the request does not compare the login to a single attribute. For
+   * example "(&amp;(objectClass=inetOrgPerson)(uid={0}))" becomes "(&amp;(objectClass=inetOrgPerson)(|(uid={0})(uid={1})))".
+   */
+  @CheckForNull
+  public LdapSearch createBatchSearch(LdapContextFactory contextFactory, List<String> usernames) {
+    if (loginAttribute == null) {
+      return null;
+    }
+    Matcher matcher = LOGIN_ASSERTION.matcher(request);
+    if (!matcher.find()) {
+      return null;
+    }
+    StringBuilder batchRequest = new StringBuilder(request.substring(0, matcher.start())).append("(|");
+    for (int i = 0; i < usernames.size(); i++) {
+      batchRequest.append('(').append(loginAttribute).append("={").append(i).append("})");
+    }
+    batchRequest.append(')').append(request.substring(matcher.end()));
+    return new LdapSearch(contextFactory)
+      .setBaseDn(getBaseDn())
+      .setRequest(batchRequest.toString())
+      // escaped by JNDI
+      .setParameters(usernames.toArray(new String[0]))
+      .setOperation(LdapMetrics.Operation.USER_SEARCH);
   }
 
   /**
@@ -108,6 +147,22 @@ public class LdapUserMapping {
     return request;
   }
 
+  /**
+   * Attribute compared to the login in the request, for example "uid" or "sAMAccountName", or null if the request
+   * does not compare the login to a single attribute.
+   */
+  @CheckForNull
+  public String getLoginAttribute() {
+    return loginAttribute;
+  }
+
+  /**
+   * Maximum number of users searched at once by {@link #createBatchSearch(LdapContextFactory, List)}. Default is 100.
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
   /**
    * Real Name Attribute. For example "cn".
    */
@@ -19,8 +19,18 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import javax.annotation.Nullable;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
@@ -40,10 +50,16 @@ public class LdapUsersProvider extends ExternalUsersProvider {
   private static final Logger LOG = Loggers.get(LdapUsersProvider.class);
   private final Map<String, LdapContextFactory> contextFactories;
   private final Map<String, LdapUserMapping> userMappings;
+  private final LdapUserLookup userLookup;
 
   public LdapUsersProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings) {
+    this(contextFactories, userMappings, new LdapUserLookup(contextFactories, userMappings, Collections.<String, LdapGroupMapping>emptyMap()));
+  }
+
+  public LdapUsersProvider(Map<String, LdapContextFactory> contextFactories, Map<String, LdapUserMapping> userMappings, LdapUserLookup userLookup) {
     this.contextFactories = contextFactories;
     this.userMappings = userMappings;
+    this.userLookup = userLookup;
   }
 
   private static String getAttributeValue(@Nullable Attribute attribute) throws NamingException {
@@ -70,14 +86,21 @@ public class LdapUsersProvider extends ExternalUsersProvider {
       LOG.debug(errorMessage);
       throw new LdapException(errorMessage);
     }
+    LdapSession session = new LdapSession();
+    try {
+      return getUserDetails(session, username);
+    } finally {
+      session.close();
+    }
+  }
+
+  private UserDetails getUserDetails(LdapSession session, String username) {
     UserDetails details = null;
     LdapException exception = null;
     for (String serverKey : userMappings.keySet()) {
       SearchResult searchResult = null;
       try {
-        searchResult = userMappings.get(serverKey).createSearch(contextFactories.get(serverKey), username)
-          .returns(userMappings.get(serverKey).getEmailAttribute(), userMappings.get(serverKey).getRealNameAttribute())
-          .findUnique();
+        searchResult = userLookup.find(session, serverKey, username);
       } catch (NamingException e) {
         // just in case if Sonar silently swallowed exception
         LOG.debug(e.getMessage(), e);
@@ -106,6 +129,132 @@ public class LdapUsersProvider extends ExternalUsersProvider {
     return details;
   }
 
+  /**
+   * Retrieves details of many users with a few searches, each one looking for a batch of users, e.g. to synchronize all
+   * users at once. Not used by SonarQube itself, which only asks for the details of the user logging in.
+   *
+   * @return details for each specified user, in the same order, null for users which don't exist
+   * @throws LdapException if unable to retrieve details of some users, or if some logins match several users
+   */
+  public Map<String, UserDetails> getUserDetails(Collection<String> usernames) {
+    LOG.debug("Requesting details for {} users", usernames.size());
+    if (userMappings.isEmpty()) {
+      String errorMessage = format("Unable to retrieve details for %s users: No user mapping found.", usernames.size());
+      LOG.debug(errorMessage);
+      throw new LdapException(errorMessage);
+    }
+    Map<String, UserDetails> details = new LinkedHashMap<>();
+    for (String username : usernames) {
+      details.put(username, null);
+    }
+    Set<String> remaining = new LinkedHashSet<>(usernames);
+    Set<String> nonUnique = new LinkedHashSet<>();
+    LdapException exception = null;
+    LdapSession session = new LdapSession();
+    try {
+      for (String serverKey : userMappings.keySet()) {
+        if (remaining.isEmpty()) {
+          break;
+        }
+        try {
+          nonUnique.addAll(findUserDetails(session, serverKey, remaining, details));
+        } catch (NamingException e) {
+          // just in case if Sonar silently swallowed exception
+          LOG.debug(e.getMessage(), e);
+          exception = new LdapException("Unable to retrieve details for users in " + serverKey, e);
+        }
+      }
+    } finally {
+      session.close();
+    }
+    // unless found in another server
+    nonUnique.retainAll(remaining);
+    if (exception == null && !nonUnique.isEmpty()) {
+      exception = new LdapException("Unable to retrieve details for users " + nonUnique + ": non unique result");
+    }
+    if (!remaining.isEmpty()) {
+      LOG.info("{} of {} users not found: {}", remaining.size(), usernames.size(), remaining);
+    }
+    if (!remaining.isEmpty() && exception != null) {
+      // some users not found and there is an exception so there is a reason they could not be found.
+      throw exception;
+    }
+    return details;
+  }
+
+  /**
+   * Searches the remaining users in the server, and removes the ones found.
+   *
+   * @return users whose login matches several entries, which are left remaining as done for a single user
+   */
+  private Set<String> findUserDetails(LdapSession session, String serverKey, Set<String> remaining, Map<String, UserDetails> details)
+    throws NamingException {
+    LdapUserMapping userMapping = userMappings.get(serverKey);
+    List<String> pending = new ArrayList<>(remaining);
+    String loginAttribute = userMapping.getLoginAttribute();
+    Set<String> nonUnique = new LinkedHashSet<>();
+    if (loginAttribute == null) {
+      // users can not be searched at once
+      for (String username : pending) {
+        SearchResult searchResult = userLookup.find(session, serverKey, username);
+        if (searchResult != null) {
+          details.put(username, mapUserDetails(serverKey, searchResult));
+          remaining.remove(username);
+        }
+      }
+      return nonUnique;
+    }
+    int batchSize = Math.max(1, userMapping.getBatchSize());
+    for (int from = 0; from < pending.size(); from += batchSize) {
+      List<String> batch = pending.subList(from, Math.min(pending.size(), from + batchSize));
+      // the login attribute is compared ignoring case, as done by most directories
+      Map<String, List<String>> usernamesByLogin = new HashMap<>();
+      // login -> DN of the entry found for it
+      Map<String, String> foundDns = new HashMap<>();
+      for (String username : batch) {
+        usernamesByLogin.computeIfAbsent(username.toLowerCase(Locale.ENGLISH), login -> new ArrayList<>(1)).add(username);
+      }
+      NamingEnumeration<SearchResult> result = userMapping.createBatchSearch(contextFactories.get(serverKey), batch)
+        .returns(userMapping.getRealNameAttribute(), userMapping.getEmailAttribute(), loginAttribute)
+        .setPageSize(batchSize)
+        .setSession(session)
+        .find();
+      try {
+        while (LdapSearch.hasMore(result)) {
+          SearchResult searchResult = result.next();
+          Attribute login = searchResult.getAttributes().get(loginAttribute);
+          if (login == null) {
+            continue;
+          }
+          NamingEnumeration<?> values = login.getAll();
+          while (values.hasMore()) {
+            String key = ((String) values.next()).toLowerCase(Locale.ENGLISH);
+            List<String> usernames = usernamesByLogin.get(key);
+            if (usernames == null) {
+              continue;
+            }
+            String foundDn = foundDns.putIfAbsent(key, searchResult.getNameInNamespace());
+            if (foundDn == null) {
+              for (String username : usernames) {
+                details.put(username, mapUserDetails(serverKey, searchResult));
+                remaining.remove(username);
+              }
+            } else if (!foundDn.equals(searchResult.getNameInNamespace()) && nonUnique.addAll(usernames)) {
+              LOG.warn("Non unique result for users {} in {}: {} and {}", usernames, serverKey, foundDn, searchResult.getNameInNamespace());
+              for (String username : usernames) {
+                details.put(username, null);
+                remaining.add(username);
+              }
+            }
+          }
+        }
+      } finally {
+        result.close();
+      }
+    }
+    return nonUnique;
+  }
+
   /**
    * Map the properties from LDAP to the {@link UserDetails}
    *
@@ -45,7 +45,8 @@ public class KerberosTest {
   @Test
   public void test() {
     Configuration settings = configure();
-    LdapRealm ldapRealm = new LdapRealm(new LdapSettingsManager(settings, new LdapAutodiscovery()));
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapRealm ldapRealm = new LdapRealm(settingsManager);
 
     ldapRealm.init();
 
@@ -55,6 +56,8 @@ public class KerberosTest {
     assertThat(ldapRealm.doGetAuthenticator().doAuthenticate(new Authenticator.Context("Godin", "user_password", Mockito.mock(HttpServletRequest.class)))).isTrue();
 
     assertThat(ldapRealm.getGroupsProvider().doGetGroups(new ExternalGroupsProvider.Context("godin", Mockito.mock(HttpServletRequest.class)))).containsOnly("sonar-users");
+    // bind user logged in once for all bind contexts
+    assertThat(settingsManager.getContextFactories().values().iterator().next().getKerberosSubject().getLogins()).isEqualTo(1);
   }
 
   @Test
@@ -0,0 +1,66 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import javax.security.auth.login.AppConfigurationEntry;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class Krb5LoginConfigurationTest {
+
+  @Test
+  public void defaults() {
+    Krb5LoginConfiguration configuration = Krb5LoginConfiguration.fromSettings(new TestConfiguration(), "ldap");
+
+    AppConfigurationEntry[] entries = configuration.getAppConfigurationEntry("any");
+    assertThat(entries).hasSize(1);
+    assertThat(entries[0].getLoginModuleName()).isEqualTo("com.sun.security.auth.module.Krb5LoginModule");
+    assertThat(entries[0].getControlFlag()).isEqualTo(AppConfigurationEntry.LoginModuleControlFlag.REQUIRED);
+    assertThat(entries[0].getOptions()).isEmpty();
+  }
+
+  @Test
+  public void optionsPerServer() {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.example.kerberos.refreshKrb5Config", "true")
+      .setProperty("ldap.example.kerberos.useKeyTab", "true")
+      .setProperty("ldap.example.kerberos.keyTab", "/etc/sonarqube.keytab")
+      .setProperty("ldap.example.kerberos.unknown", "ignored")
+      .setProperty("ldap.infosupport.kerberos.debug", "true");
+
+    Krb5LoginConfiguration example = Krb5LoginConfiguration.fromSettings(settings, "ldap.example");
+    assertThat(example.getOptions()).containsOnly(entry("refreshKrb5Config", "true"), entry("useKeyTab", "true"), entry("keyTab", "/etc/sonarqube.keytab"));
+    assertThat(example.getAppConfigurationEntry("any")[0].getOptions()).hasSize(3);
+    assertThat(Krb5LoginConfiguration.fromSettings(settings, "ldap.infosupport").getOptions()).containsOnly(entry("debug", "true"));
+  }
+
+  @Test
+  public void usersShouldNotLoginWithKeyTabOfBindUser() {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.kerberos.refreshKrb5Config", "true")
+      .setProperty("ldap.kerberos.useKeyTab", "true")
+      .setProperty("ldap.kerberos.storeKey", "true");
+
+    assertThat(Krb5LoginConfiguration.fromSettings(settings, "ldap").forUsers().getOptions()).containsOnly(entry("refreshKrb5Config", "true"));
+  }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collections;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchResult;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapChangeListenerTest {
+
+  private static final String SERVER_KEY = "<default>";
+  private static final String GODIN = "cn=Evgeny Mandrikov,ou=users,dc=example,dc=org";
+  private static final String TESTER = "cn=Tester Testerovich,ou=users,dc=example,dc=org";
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  private final LdapCredentialCache credentialCache = new LdapCredentialCache(60_000, 10);
+  private final LdapNotFoundCache notFoundCache = new LdapNotFoundCache(60_000, 10);
+  private final LdapUserCache userCache = new LdapUserCache(60_000, 10, false);
+  private final LdapGroupCache groupCache = new LdapGroupCache(60_000, 0, 10);
+
+  @Test
+  public void shouldForgetChangedUser() throws Exception {
+    LdapSettingsManager settingsManager = newSettingsManager(newSettings());
+    LdapChangeListener listener = newListener(settingsManager, null);
+    credentialCache.put(SERVER_KEY, "godin", "secret1");
+    credentialCache.put(SERVER_KEY, "tester", "secret2");
+    notFoundCache.putNotFound(SERVER_KEY, "godin");
+    groupCache.get(new LdapSession(), SERVER_KEY, GODIN, session -> Collections.singleton("sonar-users"));
+    groupCache.get(new LdapSession(), SERVER_KEY, TESTER, session -> Collections.singleton("sonar-users"));
+
+    listener.onUserChanged(null, user(GODIN, "godin"));
+
+    assertThat(credentialCache.matches(SERVER_KEY, "godin", "secret1")).isFalse();
+    assertThat(notFoundCache.isNotFound(SERVER_KEY, "godin")).isFalse();
+    assertThat(groupCache.size()).isEqualTo(1);
+    // other users are kept
+    assertThat(credentialCache.matches(SERVER_KEY, "tester", "secret2")).isTrue();
+    assertThat(listener.getChanges()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldForgetAllUsersWhenChangedUserIsUnknown() throws Exception {
+    LdapChangeListener listener = newListener(newSettingsManager(newSettings()), null);
+    credentialCache.put(SERVER_KEY, "tester", "secret2");
+    userCache.put(SERVER_KEY, "tester", user(TESTER, "tester"));
+
+    listener.onUserChanged(null, null);
+
+    assertThat(credentialCache.size()).isZero();
+    assertThat(userCache.size()).isZero();
+  }
+
+  @Test
+  public void shouldApplyChangedGroupToIndex() throws Exception {
+    LdapSettingsManager settingsManager = newSettingsManager(newSettings());
+    LdapGroupIndex groupIndex = newIndex(settingsManager);
+    groupIndex.rebuild();
+    LdapChangeListener listener = newListener(settingsManager, groupIndex);
+    groupCache.get(new LdapSession(), SERVER_KEY, GODIN, session -> Collections.singleton("sonar-users"));
+
+    SearchResult group = group("sonar-administrators", GODIN);
+    listener.onGroupChanged(null, group);
+    assertThat(groupIndex.getGroups(GODIN)).containsOnly("sonar-users", "sonar-developers", "sonar-administrators");
+    assertThat(groupCache.size()).isZero();
+
+    // removed
+    listener.onGroupChanged(group, null);
+    assertThat(groupIndex.getGroups(GODIN)).containsOnly("sonar-users", "sonar-developers");
+  }
+
+  @Test
+  public void shouldListenToChangesOfServer() throws Exception {
+    TestConfiguration settings = LdapSettingsFactory.generateAuthenticationSettings(server, null, LdapContextFactory.AUTH_METHOD_SIMPLE)
+      .setProperty("ldap.group.index.enabled", "true")
+      .setProperty("ldap.changeListener.enabled", "true");
+    LdapSettingsManager settingsManager = newSettingsManager(settings);
+    LdapGroupIndex groupIndex = settingsManager.getGroupIndexes().get(SERVER_KEY);
+    groupIndex.rebuild();
+    LdapChangeListener listener = settingsManager.getChangeListeners().get(SERVER_KEY);
+    listener.start();
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().get(SERVER_KEY);
+    InitialDirContext context = contextFactory.createBindContext();
+    try {
+      await(listener::isListening);
+
+      context.modifyAttributes("cn=sonar-developers,ou=groups,dc=example,dc=org", new ModificationItem[] {
+        new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute("uniqueMember", TESTER))
+      });
+
+      await(() -> groupIndex.getGroups(TESTER).contains("sonar-developers"));
+      assertThat(listener.getChanges()).isPositive();
+    } finally {
+      context.modifyAttributes("cn=sonar-developers,ou=groups,dc=example,dc=org", new ModificationItem[] {
+        new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute("uniqueMember", TESTER))
+      });
+      ContextHelper.closeQuietly(context);
+      listener.stop();
+    }
+  }
+
+  @Test
+  public void shouldKeepListeningWhileDirectoryDoesNotChange() throws Exception {
+    TestConfiguration settings = LdapSettingsFactory.generateAuthenticationSettings(server, null, LdapContextFactory.AUTH_METHOD_SIMPLE)
+      .setProperty("ldap.readTimeout", "200");
+    LdapSettingsManager settingsManager = newSettingsManager(settings);
+    LdapChangeListener listener = newListener(settingsManager, null);
+    credentialCache.put(SERVER_KEY, "tester", "secret2");
+    listener.start();
+    try {
+      await(listener::isListening);
+
+      // idle for longer than the read timeout of the server
+      Thread.sleep(1_000);
+
+      assertThat(listener.isListening()).isTrue();
+      assertThat(listener.getReconnections()).isZero();
+      // not cleared by a catch up after reconnection
+      assertThat(credentialCache.matches(SERVER_KEY, "tester", "secret2")).isTrue();
+    } finally {
+      listener.stop();
+    }
+  }
+
+  @Test
+  public void disabledByDefault() {
+    assertThat(newSettingsManager(newSettings()).getChangeListeners()).isEmpty();
+  }
+
+  private interface Condition {
+    boolean isMet();
+  }
+
+  private static void await(Condition condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!condition.isMet()) {
+      assertThat(System.currentTimeMillis()).as("condition not met in time").isLessThan(deadline);
+      Thread.sleep(50);
+    }
+  }
+
+  private static SearchResult user(String dn, String uid) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put("uid", uid);
+    SearchResult user = new SearchResult(dn, null, attributes);
+    user.setNameInNamespace(dn);
+    return user;
+  }
+
+  private static SearchResult group(String cn, String... members) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put("cn", cn);
+    BasicAttribute uniqueMember = new BasicAttribute("uniqueMember");
+    for (String member : members) {
+      uniqueMember.add(member);
+    }
+    attributes.put(uniqueMember);
+    SearchResult group = new SearchResult("cn=" + cn, null, attributes);
+    group.setNameInNamespace("cn=" + cn + ",ou=groups,dc=example,dc=org");
+    return group;
+  }
+
+  private LdapChangeListener newListener(LdapSettingsManager settingsManager, LdapGroupIndex groupIndex) {
+    return new LdapChangeListener(SERVER_KEY, settingsManager.getContextFactories().get(SERVER_KEY), settingsManager.getUserMappings().get(SERVER_KEY),
+      settingsManager.getGroupMappings().get(SERVER_KEY), credentialCache, notFoundCache, userCache, groupCache, groupIndex, 100);
+  }
+
+  private static LdapGroupIndex newIndex(LdapSettingsManager settingsManager) {
+    return new LdapGroupIndex(SERVER_KEY, settingsManager.getContextFactories().get(SERVER_KEY), settingsManager.getGroupMappings().get(SERVER_KEY));
+  }
+
+  private static TestConfiguration newSettings() {
+    return LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null);
+  }
+
+  private static LdapSettingsManager newSettingsManager(TestConfiguration settings) {
+    return new LdapSettingsManager(settings, new LdapAutodiscovery());
+  }
+
+}
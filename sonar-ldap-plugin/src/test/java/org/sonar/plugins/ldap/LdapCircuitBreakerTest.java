@@ -0,0 +1,149 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.net.SocketTimeoutException;
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.InitialDirContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.security.auth.login.LoginException;
+import org.junit.Test;
+import org.sonar.plugins.ldap.LdapCircuitBreaker.State;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+
+public class LdapCircuitBreakerTest {
+
+  @Test
+  public void shouldOpenAfterConsecutiveConnectionFailures() {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker("example", () -> mock(InitialDirContext.class), 3, 60_000);
+    breaker.onFailure(new CommunicationException());
+    breaker.onFailure(new CommunicationException());
+    assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+
+    breaker.onFailure(new CommunicationException());
+    assertThat(breaker.getState()).isEqualTo(State.OPEN);
+    assertThat(breaker.getOpenings()).isEqualTo(1);
+
+    try {
+      breaker.checkAvailable();
+      fail("Expected ServiceUnavailableException");
+    } catch (ServiceUnavailableException e) {
+      assertThat(e.getMessage()).contains("example");
+    }
+    assertThat(breaker.getRejections()).isEqualTo(1);
+  }
+
+  @Test
+  public void otherFailuresShouldNotResetFailures() throws Exception {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker("example", () -> mock(InitialDirContext.class), 3, 60_000);
+    breaker.onFailure(new CommunicationException());
+    breaker.onFailure(new AuthenticationException());
+    breaker.onFailure(new CommunicationException());
+
+    assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+    assertThat(breaker.getConsecutiveFailures()).isEqualTo(2);
+
+    breaker.onSuccess();
+    assertThat(breaker.getConsecutiveFailures()).isZero();
+  }
+
+  @Test
+  public void shouldRecognizeWrappedConnectionFailures() {
+    NamingException gssapi = new NamingException("Connection refused");
+    gssapi.setRootCause(new CommunicationException("Connection refused"));
+    LoginException kdc = new LoginException("Receive timed out");
+    kdc.initCause(new SocketTimeoutException("Receive timed out"));
+    NamingException kdcOutage = new NamingException(kdc.getMessage());
+    kdcOutage.setRootCause(kdc);
+    NamingException startTls = new NamingException("StartTLS failed");
+    startTls.setRootCause(new SSLHandshakeException("Remote host closed connection during handshake"));
+
+    assertThat(LdapCircuitBreaker.isConnectionFailure(gssapi)).isTrue();
+    assertThat(LdapCircuitBreaker.isConnectionFailure(kdcOutage)).isTrue();
+    assertThat(LdapCircuitBreaker.isConnectionFailure(startTls)).isTrue();
+    assertThat(LdapCircuitBreaker.isConnectionFailure(new AuthenticationException())).isFalse();
+    assertThat(LdapCircuitBreaker.isConnectionFailure(new NamingException("Integrity check on decrypted field failed"))).isFalse();
+  }
+
+  @Test
+  public void disabled() throws Exception {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker("example", () -> mock(InitialDirContext.class), 0, 60_000);
+    for (int i = 0; i < 10; i++) {
+      breaker.onFailure(new CommunicationException());
+    }
+
+    assertThat(breaker.isEnabled()).isFalse();
+    assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+    breaker.checkAvailable();
+  }
+
+  @Test
+  public void shouldCloseOnceProbeSucceeds() throws Exception {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker("example", () -> mock(InitialDirContext.class), 1, 10);
+    breaker.onFailure(new CommunicationException());
+    assertThat(breaker.getState()).isEqualTo(State.OPEN);
+
+    for (int i = 0; i < 100 && breaker.getState() != State.CLOSED; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+    breaker.checkAvailable();
+  }
+
+  @Test
+  public void shouldStayOpenWhileProbesFail() throws Exception {
+    LdapCircuitBreaker breaker = new LdapCircuitBreaker("example", () -> {
+      throw new CommunicationException();
+    }, 1, 10);
+    breaker.onFailure(new CommunicationException());
+    Thread.sleep(100);
+
+    assertThat(breaker.getState()).isNotEqualTo(State.CLOSED);
+  }
+
+  @Test
+  public void contextFactoryShouldSkipUnavailableServer() throws Exception {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.circuitBreaker.failureThreshold", "1")
+      .setProperty("ldap.pool.enabled", "false");
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", "ldap://127.0.0.1:1");
+
+    try {
+      contextFactory.createBindContext();
+      fail("Expected CommunicationException");
+    } catch (CommunicationException e) {
+      // expected
+    }
+    assertThat(contextFactory.getCircuitBreaker().getState()).isEqualTo(State.OPEN);
+    try {
+      contextFactory.createUserContext("uid=godin,ou=users,dc=example,dc=org", "secret1");
+      fail("Expected ServiceUnavailableException");
+    } catch (ServiceUnavailableException e) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.InitialDirContext;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LdapConnectionPoolTest {
+
+  private final AtomicInteger connections = new AtomicInteger();
+
+  private final LdapConnectionPool.Connector connector = () -> {
+    connections.incrementAndGet();
+    return mock(InitialDirContext.class);
+  };
+
+  @Test
+  public void shouldReuseReleasedContext() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 0, null, 2, 0, 0);
+
+    InitialDirContext context = pool.borrow();
+    assertThat(pool.getActiveCount()).isEqualTo(1);
+    pool.release(context);
+    assertThat(pool.getActiveCount()).isEqualTo(0);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+
+    assertThat(pool.borrow()).isSameAs(context);
+    assertThat(connections.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldDiscardInvalidContextOnBorrow() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 0, null, 2, 0, 0);
+
+    InitialDirContext broken = pool.borrow();
+    when(broken.getAttributes(eq(""), any(String[].class))).thenThrow(new CommunicationException("connection closed"));
+    pool.release(broken);
+
+    InitialDirContext context = pool.borrow();
+    assertThat(context).isNotSameAs(broken);
+    verify(broken).close();
+    assertThat(connections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldCloseInvalidatedContext() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 0, null, 1, 0, 0);
+
+    InitialDirContext context = pool.borrow();
+    pool.invalidate(context);
+    verify(context).close();
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+    // permit was given back
+    assertThat(pool.borrow()).isNotSameAs(context);
+  }
+
+  @Test
+  public void shouldEvictIdleContextsAboveMinSize() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 1, null, 3, 1, 0);
+
+    InitialDirContext first = pool.borrow();
+    InitialDirContext second = pool.borrow();
+    pool.release(first);
+    pool.release(second);
+    Thread.sleep(10);
+
+    pool.release(pool.borrow());
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldFillUpToMinSize() throws NamingException {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 2, null, 3, 0, 0);
+
+    pool.fill();
+    assertThat(pool.getIdleCount()).isEqualTo(2);
+    assertThat(connections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldWarmUpToPreferredSize() throws NamingException {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 0, 2, 3, 0, 0);
+
+    assertThat(pool.warm(5)).isEqualTo(2);
+    assertThat(pool.warm(1)).isZero();
+    assertThat(pool.getIdleCount()).isEqualTo(2);
+    assertThat(pool.getCreatedCount()).isEqualTo(2);
+    assertThat(pool.getConnectTimes().getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldCloseDrainedContexts() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 0, null, 3, 0, 0);
+    InitialDirContext borrowed = pool.borrow();
+    InitialDirContext idle = pool.borrow();
+    pool.release(idle);
+
+    assertThat(pool.drain()).isEqualTo(1);
+    verify(idle).close();
+    assertThat(pool.getIdleCount()).isZero();
+
+    // borrowed before the drain, so not reused
+    pool.release(borrowed);
+    verify(borrowed).close();
+    assertThat(pool.getIdleCount()).isZero();
+    assertThat(pool.getDestroyedCount()).isEqualTo(2);
+
+    // borrowed after the drain
+    InitialDirContext context = pool.borrow();
+    pool.release(context);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldReset() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 1, null, 3, 0, 0);
+    pool.release(pool.borrow());
+    pool.invalidate(pool.borrow());
+
+    pool.reset();
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+    assertThat(pool.getCreatedCount()).isEqualTo(1);
+    assertThat(pool.getDestroyedCount()).isZero();
+    assertThat(connections.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldIgnoreUnknownContext() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 0, null, 1, 0, 0);
+
+    pool.release(mock(InitialDirContext.class));
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldCloseContextsExceedingPreferredSize() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 0, 1, 2, 0, 0);
+
+    InitialDirContext first = pool.borrow();
+    InitialDirContext second = pool.borrow();
+    pool.release(first);
+    // second is still in use, so first is exceeding
+    verify(first).close();
+    pool.release(second);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldFailFastWhenExhausted() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 0, null, 1, 0, 0);
+
+    InitialDirContext context = pool.borrow();
+    try {
+      pool.borrow();
+      fail("Pool is exhausted");
+    } catch (ServiceUnavailableException e) {
+      assertThat(e.getMessage()).contains("LDAP connection pool exhausted for test");
+    }
+    pool.release(context);
+    assertThat(pool.borrow()).isSameAs(context);
+  }
+
+  @Test
+  public void shouldWaitForReleasedContext() throws Exception {
+    LdapConnectionPool pool = new LdapConnectionPool("test", connector, 0, null, 1, 0, 10_000);
+
+    InitialDirContext context = pool.borrow();
+    Thread releaser = new Thread(() -> pool.release(context));
+    releaser.start();
+    assertThat(pool.borrow()).isSameAs(context);
+    releaser.join();
+  }
+
+  @Test
+  public void shouldReadSettings() {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.pool.minSize", "1")
+      .setProperty("ldap.pool.prefSize", "2")
+      .setProperty("ldap.pool.maxSize", "3")
+      .setProperty("ldap.pool.idleTimeout", "1000")
+      .setProperty("ldap.pool.borrowTimeout", "100");
+    LdapConnectionPool pool = new LdapConnectionPool(settings, "ldap", "test", connector);
+
+    assertThat(pool.toString()).isEqualTo("LdapConnectionPool{name=test, minSize=1, prefSize=2, maxSize=3, idleTimeout=1000, borrowTimeout=100}");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectInvalidSizes() {
+    new LdapConnectionPool("test", connector, 2, null, 1, 0, 0);
+  }
+
+}
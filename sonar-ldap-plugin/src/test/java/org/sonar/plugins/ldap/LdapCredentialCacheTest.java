@@ -0,0 +1,94 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapCredentialCacheTest {
+
+  @Test
+  public void disabledByDefault() {
+    LdapCredentialCache cache = new LdapCredentialCache(new TestConfiguration());
+    cache.put("example", "godin", "secret1");
+
+    assertThat(cache.isEnabled()).isFalse();
+    assertThat(cache.matches("example", "godin", "secret1")).isFalse();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  public void shouldMatchSamePasswordOnly() {
+    LdapCredentialCache cache = new LdapCredentialCache(new TestConfiguration().setProperty("ldap.authenticationCache.ttl", "60000"));
+    cache.put("example", "godin", "secret1");
+
+    assertThat(cache.matches("example", "godin", "secret1")).isTrue();
+    assertThat(cache.matches("example", "godin", "wrong")).isFalse();
+    assertThat(cache.matches("infosupport", "godin", "secret1")).isFalse();
+    assertThat(cache.matches("example", "tester", "secret1")).isFalse();
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(3);
+  }
+
+  @Test
+  public void wrongPasswordShouldForgetVerification() {
+    LdapCredentialCache cache = new LdapCredentialCache(60_000, 10);
+    cache.put("example", "godin", "secret1");
+
+    assertThat(cache.matches("example", "godin", "wrong")).isFalse();
+    // later attempts do not compute the digest again, whatever the password, until verified by the server again
+    assertThat(cache.size()).isZero();
+    assertThat(cache.matches("example", "godin", "secret1")).isFalse();
+  }
+
+  @Test
+  public void shouldInvalidate() {
+    LdapCredentialCache cache = new LdapCredentialCache(60_000, 10);
+    cache.put("example", "godin", "secret1");
+    cache.invalidate("example", "godin");
+
+    assertThat(cache.matches("example", "godin", "secret1")).isFalse();
+  }
+
+  @Test
+  public void shouldExpire() throws InterruptedException {
+    LdapCredentialCache cache = new LdapCredentialCache(1, 10);
+    cache.put("example", "godin", "secret1");
+    Thread.sleep(10);
+
+    assertThat(cache.matches("example", "godin", "secret1")).isFalse();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsed() {
+    LdapCredentialCache cache = new LdapCredentialCache(60_000, 2);
+    cache.put("example", "godin", "secret1");
+    cache.put("example", "tester", "secret2");
+    cache.matches("example", "godin", "secret1");
+    cache.put("example", "robby", "secret3");
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.matches("example", "godin", "secret1")).isTrue();
+    assertThat(cache.matches("example", "tester", "secret2")).isFalse();
+  }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapDnScannerTest {
+
+  private static final String[] DNS = {
+    "cn=sonar-users,ou=groups,dc=example,dc=org",
+    "CN=Sonar Developers,OU=Groups,DC=corp,DC=example,DC=com",
+    "cn = spaced , ou=groups,dc=example,dc=org",
+    "cn=Doe\\, John,ou=users,dc=example,dc=org",
+    "cn=a\\+b\\=c\\\\d,ou=groups",
+    "cn=\\23hash\\3Bsemi\\22quote\\3Cless\\3Egreater,ou=groups",
+    "cn=caf\\C3\\A9,ou=groups",
+    "cn=caf\u00e9,ou=groups",
+    "cn=\\ leading and trailing\\ ,ou=groups",
+    "cn=trailing spaces   ,ou=groups",
+    "cn=\"quoted, value\",ou=groups",
+    "cn=multi+uid=valued,ou=groups",
+    "uid=godin;ou=users;dc=example",
+    "cn=single",
+    "cn=",
+    "2.5.4.3=oid,ou=groups",
+  };
+
+  @Test
+  public void shouldMatchLdapName() throws Exception {
+    for (String dn : DNS) {
+      LdapName name = new LdapName(dn);
+      Rdn leaf = name.getRdn(name.size() - 1);
+      assertThat(LdapDnScanner.getLeafValue(dn, leaf.getType())).as(dn).isEqualTo(leaf.getValue());
+    }
+  }
+
+  @Test
+  public void baseShouldMatchLdapName() throws Exception {
+    String[] bases = {"ou=groups,dc=example,dc=org", "OU = Groups, DC=Example,dc=org", "ou=groups", "o=Sonar\\, Inc,dc=org"};
+    String[] dns = {"ou=groups,dc=example,dc=org", "CN=X,OU=GROUPS,DC=EXAMPLE,DC=ORG", "cn=x,xou=groups,dc=example,dc=org",
+      "cn=a\\,ou=groups,dc=example,dc=org", "cn=x,o=Sonar\\2C Inc,dc=org", "dc=org"};
+    for (String base : bases) {
+      for (String dn : dns) {
+        assertThat(new LdapDnScanner.Base(base).contains(dn)).as(dn + " under " + base).isEqualTo(new LdapName(dn).startsWith(new LdapName(base)));
+      }
+    }
+    for (String dn : DNS) {
+      assertThat(new LdapDnScanner.Base("ou=groups").contains(dn)).as(dn).isEqualTo(new LdapName(dn).startsWith(new LdapName("ou=groups")));
+    }
+  }
+
+  @Test
+  public void normalizedFormsOfSameDnShouldBeEqual() throws Exception {
+    for (String dn : DNS) {
+      String normalized = LdapDnScanner.normalize(dn);
+      assertThat(LdapDnScanner.normalize(normalized)).as(dn).isEqualTo(normalized);
+      assertThat(new LdapName(normalized)).as(dn).isEqualTo(new LdapName(dn));
+    }
+    assertThat(LdapDnScanner.normalize("CN=Evgeny Mandrikov, OU=Users, DC=example, DC=org"))
+      .isEqualTo(LdapDnScanner.normalize("cn=evgeny mandrikov,ou=users,dc=example,dc=org"));
+    assertThat(LdapDnScanner.normalize("cn=Doe\\2C John,ou=users")).isEqualTo(LdapDnScanner.normalize("cn=doe\\, john,ou=users"));
+    assertThat(LdapDnScanner.normalize("cn=a=b,ou=users")).isEqualTo(LdapDnScanner.normalize("cn=a\\=b,ou=users"));
+  }
+
+  @Test
+  public void shouldIgnoreCaseOfType() throws Exception {
+    assertThat(LdapDnScanner.getLeafValue("CN=sonar-users,OU=groups", "cn")).isEqualTo("sonar-users");
+    assertThat(LdapDnScanner.getLeafValue("cn=sonar-users,ou=groups", "CN")).isEqualTo("sonar-users");
+  }
+
+  @Test
+  public void shouldIgnoreMixedCaseOfType() throws Exception {
+    // attribute types are case-insensitive, e.g. memberOf values of Active Directory are written "CN=..."
+    assertThat(LdapDnScanner.getLeafValue("cN=sonar-users,ou=groups", "Cn")).isEqualTo("sonar-users");
+    assertThat(LdapDnScanner.getLeafValue("sAMAccountName=godin,ou=users", "samaccountname")).isEqualTo("godin");
+    assertThat(LdapDnScanner.getLeafValue("Cn=Doe\\, John,ou=users", "cN")).isEqualTo("Doe, John");
+  }
+
+  @Test
+  public void shouldReturnNullForOtherType() throws Exception {
+    assertThat(LdapDnScanner.getLeafValue("uid=godin,ou=users", "cn")).isNull();
+    assertThat(LdapDnScanner.getLeafValue("cnx=godin,ou=users", "cn")).isNull();
+    assertThat(LdapDnScanner.getLeafValue("c=godin,ou=users", "cn")).isNull();
+  }
+
+  @Test
+  public void shouldReturnSubstringWhenNotEscaped() throws Exception {
+    String dn = "cn=sonar-users,ou=groups,dc=example,dc=org";
+    String value = LdapDnScanner.getLeafValue(dn, "cn");
+    assertThat(value).isEqualTo("sonar-users");
+  }
+
+  @Test(expected = InvalidNameException.class)
+  public void missingEquals() throws Exception {
+    LdapDnScanner.getLeafValue("sonar-users,ou=groups", "cn");
+  }
+
+  @Test(expected = InvalidNameException.class)
+  public void missingType() throws Exception {
+    LdapDnScanner.getLeafValue("=sonar-users,ou=groups", "cn");
+  }
+
+  @Test(expected = InvalidNameException.class)
+  public void trailingBackslash() throws Exception {
+    LdapDnScanner.getLeafValue("cn=sonar-users\\", "cn");
+  }
+
+}
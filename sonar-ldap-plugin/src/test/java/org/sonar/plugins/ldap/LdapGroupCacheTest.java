@@ -0,0 +1,145 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapGroupCacheTest {
+
+  private static final String GODIN = "cn=Evgeny Mandrikov,ou=users,dc=example,dc=org";
+
+  private final AtomicInteger loads = new AtomicInteger();
+  private final LdapGroupCache.Loader loader = session -> {
+    loads.incrementAndGet();
+    return new HashSet<>(Collections.singleton("sonar-users-" + loads.get()));
+  };
+
+  @Test
+  public void disabledByDefault() throws Exception {
+    LdapGroupCache cache = new LdapGroupCache(new TestConfiguration());
+
+    assertThat(cache.isEnabled()).isFalse();
+    cache.get(new LdapSession(), "example", GODIN, loader);
+    cache.get(new LdapSession(), "example", GODIN, loader);
+    assertThat(loads.get()).isEqualTo(2);
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  public void shouldReuseGroups() throws Exception {
+    LdapGroupCache cache = new LdapGroupCache(new TestConfiguration().setProperty("ldap.groupCache.ttl", "60000"));
+
+    Set<String> groups = cache.get(new LdapSession(), "example", GODIN, loader);
+    assertThat(cache.get(new LdapSession(), "example", GODIN.toUpperCase(), loader)).isEqualTo(groups);
+    assertThat(loads.get()).isEqualTo(1);
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(1);
+
+    // other server
+    cache.get(new LdapSession(), "infosupport", GODIN, loader);
+    assertThat(loads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldExpire() throws Exception {
+    LdapGroupCache cache = new LdapGroupCache(1, 0, 10);
+    cache.get(new LdapSession(), "example", GODIN, loader);
+    Thread.sleep(10);
+
+    assertThat(cache.get(new LdapSession(), "example", GODIN, loader)).containsOnly("sonar-users-2");
+  }
+
+  @Test
+  public void shouldInvalidate() throws Exception {
+    LdapGroupCache cache = new LdapGroupCache(60_000, 0, 10);
+    cache.get(new LdapSession(), "example", GODIN, loader);
+    cache.invalidate("example", GODIN);
+    cache.get(new LdapSession(), "example", GODIN, loader);
+    assertThat(loads.get()).isEqualTo(2);
+
+    cache.invalidateAll();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsed() throws Exception {
+    LdapGroupCache cache = new LdapGroupCache(60_000, 0, 2);
+    cache.get(new LdapSession(), "example", "uid=a", loader);
+    cache.get(new LdapSession(), "example", "uid=b", loader);
+    cache.get(new LdapSession(), "example", "uid=a", loader);
+    cache.get(new LdapSession(), "example", "uid=c", loader);
+
+    assertThat(cache.size()).isEqualTo(2);
+    cache.get(new LdapSession(), "example", "uid=a", loader);
+    assertThat(loads.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldRefreshAheadInBackground() throws Exception {
+    // always within the refresh-ahead window
+    LdapGroupCache cache = new LdapGroupCache(60_000, 60_000, 10);
+    assertThat(cache.get(new LdapSession(), "example", GODIN, loader)).containsOnly("sonar-users-1");
+
+    // still served from the cache, while refreshed in the background
+    assertThat(cache.get(new LdapSession(), "example", GODIN, loader)).containsOnly("sonar-users-1");
+    for (int i = 0; i < 100 && cache.getRefreshes() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(cache.getRefreshes()).isEqualTo(1);
+    assertThat(cache.get(new LdapSession(), "example", GODIN, loader)).containsOnly("sonar-users-2");
+  }
+
+  @Test
+  public void shouldNotCacheGroupsRefreshedWhileInvalidated() throws Exception {
+    final CountDownLatch refreshStarted = new CountDownLatch(1);
+    final CountDownLatch invalidated = new CountDownLatch(1);
+    LdapGroupCache.Loader slowLoader = session -> {
+      if (loads.incrementAndGet() > 1) {
+        refreshStarted.countDown();
+        try {
+          invalidated.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return Collections.singleton("sonar-users-" + loads.get());
+    };
+    LdapGroupCache cache = new LdapGroupCache(60_000, 60_000, 10);
+    cache.get(new LdapSession(), "example", GODIN, slowLoader);
+    cache.get(new LdapSession(), "example", GODIN, slowLoader);
+    assertThat(refreshStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+    cache.invalidate("example", GODIN);
+    invalidated.countDown();
+    Thread.sleep(100);
+
+    assertThat(cache.getRefreshes()).isZero();
+    assertThat(cache.size()).isZero();
+  }
+
+}
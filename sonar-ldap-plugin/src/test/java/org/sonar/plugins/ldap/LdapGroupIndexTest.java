@@ -0,0 +1,225 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Map;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapGroupIndexTest {
+
+  private static final String GODIN = "cn=Evgeny Mandrikov,ou=users,dc=example,dc=org";
+  private static final String TESTER = "cn=Tester Testerovich,ou=users,dc=example,dc=org";
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void notUsableUntilBuilt() {
+    LdapGroupIndex index = newIndex(newSettings());
+
+    assertThat(index.isReady()).isFalse();
+    assertThat(index.getGroups(GODIN)).isNull();
+  }
+
+  @Test
+  public void shouldIndexMembersOfGroups() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings());
+    index.rebuild();
+
+    assertThat(index.isReady()).isTrue();
+    assertThat(index.getGroupCount()).isEqualTo(2);
+    assertThat(index.getGroups(GODIN)).containsOnly("sonar-users", "sonar-developers");
+    assertThat(index.getGroups(GODIN.toUpperCase())).containsOnly("sonar-users", "sonar-developers");
+    assertThat(index.getGroups("cn=Tester Testerovich,ou=users,dc=example,dc=org")).containsOnly("sonar-users");
+    // unknown members are searched
+    assertThat(index.getGroups("cn=Unknown,ou=users,dc=example,dc=org")).isNull();
+  }
+
+  @Test
+  public void shouldMatchMembersWrittenDifferently() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings());
+    index.rebuild();
+    assertThat(index.applyChange(group("sonar-administrators", "CN=Tester Testerovich, OU=users, DC=example, DC=org"))).isTrue();
+
+    assertThat(index.getGroups("cn = Evgeny Mandrikov , ou=users,dc=example,dc=org")).containsOnly("sonar-users", "sonar-developers");
+    assertThat(index.getGroups(TESTER)).containsOnly("sonar-users", "sonar-administrators");
+  }
+
+  @Test
+  public void shouldOnlyIndexGroupsOfGroupRequest() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings()
+      .setProperty("ldap.group.request", "(&(objectClass=groupOfUniqueNames)(cn=sonar-users)(uniqueMember={dn}))"));
+    index.rebuild();
+
+    assertThat(index.getGroupCount()).isEqualTo(1);
+    assertThat(index.getGroups(GODIN)).containsOnly("sonar-users");
+  }
+
+  @Test
+  public void notUsableWhenNotRebuiltInTime() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings()
+      .setProperty("ldap.group.index.refreshInterval", "1")
+      .setProperty("ldap.group.index.pollInterval", "0"));
+    index.rebuild();
+    Thread.sleep(10);
+
+    assertThat(index.getGroups(GODIN)).isNull();
+  }
+
+  @Test
+  public void notUsableWhenNotPolledInTime() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings().setProperty("ldap.group.index.pollInterval", "1"));
+    index.rebuild();
+    Thread.sleep(10);
+
+    assertThat(index.getGroups(GODIN)).isNull();
+  }
+
+  @Test
+  public void pollShouldKeepIndexOfGroupsWithoutChangeAttribute() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings()
+      .setProperty("ldap.group.index.changeAttribute", "description")
+      .setProperty("ldap.group.index.pollInterval", "5"));
+    index.rebuild();
+    Thread.sleep(20);
+    assertThat(index.getGroups(GODIN)).isNull();
+
+    index.poll();
+
+    assertThat(index.getGroups(GODIN)).containsOnly("sonar-users", "sonar-developers");
+  }
+
+  @Test
+  public void pollShouldKeepIndex() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings());
+    // nothing to poll until built
+    index.poll();
+    assertThat(index.isReady()).isFalse();
+
+    index.rebuild();
+    index.poll();
+
+    assertThat(index.getGroupCount()).isEqualTo(2);
+    assertThat(index.getGroups(GODIN)).containsOnly("sonar-users", "sonar-developers");
+  }
+
+  @Test
+  public void shouldApplyChangedGroups() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings());
+    index.rebuild();
+
+    // godin removed from sonar-users
+    assertThat(index.applyChange(group("sonar-users", TESTER))).isTrue();
+    assertThat(index.getGroups(GODIN)).containsOnly("sonar-developers");
+    assertThat(index.getGroups(TESTER)).containsOnly("sonar-users");
+
+    // new group
+    assertThat(index.applyChange(group("sonar-administrators", GODIN.toUpperCase()))).isTrue();
+    assertThat(index.getGroups(GODIN)).containsOnly("sonar-developers", "sonar-administrators");
+    assertThat(index.getGroupCount()).isEqualTo(3);
+
+    // all members removed from sonar-users
+    assertThat(index.applyChange(group("sonar-users"))).isTrue();
+    assertThat(index.getGroups(TESTER)).isNull();
+    assertThat(index.getGroupCount()).isEqualTo(2);
+    assertThat(index.getMemberCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void groupsWithSameIdShouldBeIndexedByDn() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings());
+    index.rebuild();
+
+    SearchResult otherSonarUsers = group("sonar-users", GODIN);
+    otherSonarUsers.setNameInNamespace("cn=sonar-users,ou=other-groups,dc=example,dc=org");
+    assertThat(index.applyChange(otherSonarUsers)).isTrue();
+    assertThat(index.getGroups(GODIN)).containsOnly("sonar-users", "sonar-developers");
+
+    // godin is still member of the other group having the same ID
+    assertThat(index.applyChange(group("sonar-users", TESTER))).isTrue();
+    assertThat(index.getGroups(GODIN)).containsOnly("sonar-users", "sonar-developers");
+    assertThat(index.getGroupCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void notUsableWhenMembersOfChangedGroupAreRanged() throws Exception {
+    LdapGroupIndex index = newIndex(newSettings());
+    index.rebuild();
+
+    SearchResult group = group("sonar-users");
+    group.getAttributes().put(new BasicAttribute("uniqueMember;range=0-1499"));
+    assertThat(index.applyChange(group)).isFalse();
+
+    assertThat(index.isReady()).isFalse();
+    assertThat(index.getGroups(GODIN)).isNull();
+  }
+
+  @Test
+  public void groupsProviderShouldUseIndex() throws Exception {
+    TestConfiguration settings = newSettings().setProperty("ldap.group.index.enabled", "true");
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    Map<String, LdapGroupIndex> groupIndexes = settingsManager.getGroupIndexes();
+    assertThat(groupIndexes).hasSize(1);
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(),
+      settingsManager.getGroupMappings(), new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings()),
+      settingsManager.getGroupCache(), groupIndexes);
+
+    // not built yet: groups are searched
+    assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-users", "sonar-developers");
+
+    groupIndexes.values().iterator().next().rebuild();
+    assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-users", "sonar-developers");
+    assertThat(groupsProvider.getGroups("tester")).containsOnly("sonar-users");
+  }
+
+  private static SearchResult group(String cn, String... members) {
+    BasicAttributes attributes = new BasicAttributes(true);
+    attributes.put("cn", cn);
+    attributes.put("modifyTimestamp", "20260101000000Z");
+    if (members.length > 0) {
+      BasicAttribute uniqueMember = new BasicAttribute("uniqueMember");
+      for (String member : members) {
+        uniqueMember.add(member);
+      }
+      attributes.put(uniqueMember);
+    }
+    SearchResult group = new SearchResult("cn=" + cn, null, attributes);
+    group.setNameInNamespace("cn=" + cn + ",ou=groups,dc=example,dc=org");
+    return group;
+  }
+
+  private static TestConfiguration newSettings() {
+    return LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null);
+  }
+
+  private static LdapGroupIndex newIndex(TestConfiguration settings) {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    String serverKey = settingsManager.getGroupMappings().keySet().iterator().next();
+    return new LdapGroupIndex(serverKey, settingsManager.getContextFactories().get(serverKey), settingsManager.getGroupMappings().get(serverKey));
+  }
+
+}
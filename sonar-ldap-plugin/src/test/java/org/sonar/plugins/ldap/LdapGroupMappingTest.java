@@ -19,13 +19,18 @@
  */
 package org.sonar.plugins.ldap;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import org.sonar.api.config.Configuration;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class LdapGroupMappingTest {
 
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
   @Test
   public void defaults() {
     LdapGroupMapping groupMapping = new LdapGroupMapping(new TestConfiguration(), "ldap");
@@ -35,6 +40,8 @@ public class LdapGroupMappingTest {
     assertThat(groupMapping.getMembershipAttribute()).isEqualTo(null);
     assertThat(groupMapping.getRequest()).isEqualTo("(&(objectClass=groupOfUniqueNames)(uniqueMember={0}))");
     assertThat(groupMapping.getRequiredUserAttributes()).isEqualTo(new String[] {"dn"});
+    assertThat(groupMapping.getAllGroupsRequest()).isEqualTo("(&(objectClass=groupOfUniqueNames)(objectClass=*))");
+    assertThat(groupMapping.getPageSize()).isZero();
 
     assertThat(groupMapping.toString()).isEqualTo("LdapGroupMapping{" +
       "baseDn=null," +
@@ -62,6 +69,40 @@ public class LdapGroupMappingTest {
 
     assertThat(groupMapping.getRequest()).isEqualTo("(&(|(objectClass=posixGroup)(objectClass=groupOfUniqueNames))(|(memberUid={0})(uniqueMember={1})))");
     assertThat(groupMapping.getRequiredUserAttributes()).isEqualTo(new String[] {"uid", "dn"});
+    assertThat(groupMapping.getAllGroupsRequest()).isEqualTo("(&(|(objectClass=posixGroup)(objectClass=groupOfUniqueNames))(|(objectClass=*)(objectClass=*)))");
+  }
+
+  @Test
+  public void indexMemberAttributeShouldDefaultToAttributeOfRequest() {
+    Configuration settings = new TestConfiguration()
+      .setProperty("ldap.group.request", "(&(objectClass=group)(member={dn}))")
+      .setProperty("ldap.group.index.enabled", "true");
+
+    assertThat(new LdapGroupMapping(settings, "ldap").getIndexMemberAttribute()).isEqualTo("member");
+    assertThat(new LdapGroupMapping(new TestConfiguration(), "ldap").getIndexMemberAttribute()).isEqualTo("uniqueMember");
+  }
+
+  @Test
+  public void indexMemberAttributeShouldMatchRequest() {
+    Configuration settings = new TestConfiguration()
+      .setProperty("ldap.group.request", "(&(objectClass=group)(member={dn}))")
+      .setProperty("ldap.group.index.enabled", "true")
+      .setProperty("ldap.group.index.memberAttribute", "uniqueMember");
+
+    thrown.expect(LdapException.class);
+    thrown.expectMessage("The property 'ldap.group.index.memberAttribute' has value 'uniqueMember', but the group request compares 'member' to the DN of users");
+    new LdapGroupMapping(settings, "ldap");
+  }
+
+  @Test
+  public void indexRequiresRequestOnDn() {
+    Configuration settings = new TestConfiguration()
+      .setProperty("ldap.group.request", "(&(objectClass=posixGroup)(memberUid={uid}))")
+      .setProperty("ldap.group.index.enabled", "true");
+
+    thrown.expect(LdapException.class);
+    thrown.expectMessage("The group index of 'ldap' requires a group request comparing an attribute to {dn}");
+    new LdapGroupMapping(settings, "ldap");
   }
 
 }
@@ -20,6 +20,11 @@
 package org.sonar.plugins.ldap;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.sonar.api.config.Configuration;
@@ -27,6 +32,12 @@ import org.sonar.api.config.Settings;
 import org.sonar.plugins.ldap.server.LdapServer;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 public class LdapGroupsProviderTest {
 
@@ -62,6 +73,17 @@ public class LdapGroupsProviderTest {
     assertThat(groups).isEmpty();
   }
 
+  @Test
+  public void groupWithoutIdAttributeShouldBeNamedAfterItsRdn() {
+    Configuration settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, null)
+      .setProperty("ldap.group.idAttribute", "description");
+
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings());
+
+    assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-users", "sonar-developers");
+  }
+
   @Test
   public void defaultsMultipleLdap() throws Exception {
     Configuration settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, infosupportServer);
@@ -147,4 +169,44 @@ public class LdapGroupsProviderTest {
     assertThat(groups).containsOnly("sonar-users", "sonar-developers", "linux-users");
   }
 
+  @Test
+  public void memberOf() throws Exception {
+    Configuration settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, null)
+      .setProperty("ldap.group.memberOfAttribute", "memberOf");
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    BasicAttributes attributes = new BasicAttributes(true);
+    BasicAttribute memberOf = new BasicAttribute("memberOf");
+    memberOf.add("CN=sonar-users,ou=groups,dc=example,dc=org");
+    memberOf.add("cn=sonar-developers,ou=Groups,dc=Example,dc=org");
+    // outside of the base DN of groups
+    memberOf.add("cn=admins,ou=other,dc=example,dc=org");
+    // not named after the ID attribute of groups
+    memberOf.add("uid=robby,ou=groups,dc=example,dc=org");
+    attributes.put(memberOf);
+    SearchResult user = new SearchResult("uid=godin", null, attributes);
+    user.setNameInNamespace("uid=godin,ou=users,dc=example,dc=org");
+    LdapUserLookup userLookup = mock(LdapUserLookup.class);
+    when(userLookup.find(any(LdapSession.class), anyString(), eq("godin"))).thenReturn(user);
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    Map<String, LdapContextFactory> contextFactories = new HashMap<>();
+    for (String serverKey : settingsManager.getContextFactories().keySet()) {
+      contextFactories.put(serverKey, contextFactory);
+    }
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(contextFactories, settingsManager.getUserMappings(), settingsManager.getGroupMappings(), userLookup);
+
+    assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-users", "sonar-developers");
+    // no group search
+    verifyZeroInteractions(contextFactory);
+  }
+
+  @Test
+  public void memberOfShouldBeReturnedByUserSearch() {
+    Configuration settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, null)
+      .setProperty("ldap.group.memberOfAttribute", "memberOf");
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapUserLookup userLookup = new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings());
+
+    assertThat(userLookup.getReturningAttributes(settingsManager.getUserMappings().keySet().iterator().next())).contains("memberOf");
+  }
+
 }
@@ -0,0 +1,132 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collections;
+import javax.naming.NamingException;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchResult;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LdapHedgingTest {
+
+  private static final String UNREACHABLE_URL = "ldap://127.0.0.1:1";
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void noHedgingWithoutReplicas() {
+    LdapContextFactory contextFactory = new LdapContextFactory(new TestConfiguration(), "ldap", server.getUrl());
+
+    assertThat(contextFactory.getHedging()).isNull();
+  }
+
+  @Test
+  public void shouldUseReplicaWhenServerFails() throws Exception {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.hedge.urls", server.getUrl());
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", UNREACHABLE_URL);
+
+    assertThat(contextFactory.getHedging().getReplicas()).hasSize(1);
+    SearchResult result = newUserSearch(contextFactory, "godin").findUnique();
+    assertThat(result).isNotNull();
+  }
+
+  @Test
+  public void replicasShouldOnlyDifferByUrl() {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.hedge.urls", server.getUrl())
+      .setProperty("ldap.searchTimeLimit", "500")
+      .setProperty("ldap.pool.maxSize", "3");
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", UNREACHABLE_URL);
+
+    LdapContextFactory replica = contextFactory.getHedging().getReplicas().get(0);
+    assertThat(replica.getProviderUrl()).isEqualTo(server.getUrl());
+    assertThat(replica.getSearchTimeLimit()).isEqualTo(500);
+    assertThat(replica.getPool()).isNotSameAs(contextFactory.getPool());
+    assertThat(replica.getPool().getMaxSize()).isEqualTo(3);
+    assertThat(replica.getMetrics()).isSameAs(contextFactory.getMetrics());
+    assertThat(replica.getKerberosConfiguration()).isSameAs(contextFactory.getKerberosConfiguration());
+    assertThat(replica.getHedging()).isNull();
+  }
+
+  @Test
+  public void shouldFailWhenServerAndReplicasFail() {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.hedge.urls", UNREACHABLE_URL);
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", UNREACHABLE_URL);
+
+    try {
+      newUserSearch(contextFactory, "godin").findUnique();
+      fail("Expected NamingException");
+    } catch (NamingException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void shouldHedgeSlowServer() throws Exception {
+    LdapContextFactory slow = mock(LdapContextFactory.class);
+    when(slow.borrowBindContext()).thenAnswer(invocation -> {
+      Thread.sleep(10_000);
+      return mock(InitialDirContext.class);
+    });
+    LdapContextFactory replica = new LdapContextFactory(new TestConfiguration(), "ldap", server.getUrl());
+    LdapHedging hedging = new LdapHedging("slow", Collections.singletonList(replica), 95, 10);
+    when(slow.getHedging()).thenReturn(hedging);
+    when(slow.getMetrics()).thenReturn(new LdapMetrics());
+
+    long start = System.currentTimeMillis();
+    SearchResult result = newUserSearch(slow, "godin").findUnique();
+
+    assertThat(result).isNotNull();
+    assertThat(System.currentTimeMillis() - start).isLessThan(5_000);
+  }
+
+  @Test
+  public void delayDependsOnLatencies() {
+    LdapHedging hedging = new LdapHedging("example", Collections.<LdapContextFactory>emptyList(), 50, 10);
+    assertThat(hedging.getDelay()).isEqualTo(10);
+
+    for (int i = 0; i < 20; i++) {
+      hedging.getLatencies().record(14);
+    }
+    // not computed on every search
+    assertThat(hedging.getDelay()).isEqualTo(10);
+    hedging.updateDelay();
+    assertThat(hedging.getDelay()).isEqualTo(14);
+  }
+
+  private static LdapSearch newUserSearch(LdapContextFactory contextFactory, String login) {
+    return new LdapSearch(contextFactory)
+      .setBaseDn("ou=users,dc=example,dc=org")
+      .setRequest("(&(objectClass=inetOrgPerson)(uid={0}))")
+      .setParameters(login);
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapHistogramTest {
+
+  @Test
+  public void empty() {
+    LdapHistogram histogram = new LdapHistogram();
+
+    assertThat(histogram.getCount()).isZero();
+    assertThat(histogram.getMean()).isZero();
+    assertThat(histogram.getMax()).isZero();
+    assertThat(histogram.getPercentile(99)).isZero();
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    LdapHistogram histogram = new LdapHistogram();
+    for (int i = 0; i < 10; i++) {
+      histogram.record(i);
+    }
+
+    assertThat(histogram.getCount()).isEqualTo(10);
+    assertThat(histogram.getMean()).isEqualTo(4.5);
+    assertThat(histogram.getPercentile(50)).isEqualTo(4);
+    assertThat(histogram.getPercentile(100)).isEqualTo(9);
+  }
+
+  @Test
+  public void percentilesAreAccurateTo12Percent() {
+    LdapHistogram histogram = new LdapHistogram();
+    for (int i = 1; i <= 10_000; i++) {
+      histogram.record(i);
+    }
+
+    assertThat(histogram.getPercentile(50)).isBetween(5_000L, 5_625L);
+    assertThat(histogram.getPercentile(99)).isBetween(9_900L, 10_000L);
+    assertThat(histogram.getMax()).isEqualTo(10_000);
+  }
+
+  @Test
+  public void bucketsCoverAllValues() {
+    assertThat(LdapHistogram.bucket(0)).isZero();
+    assertThat(LdapHistogram.highestValue(LdapHistogram.bucket(Long.MAX_VALUE))).isEqualTo(Long.MAX_VALUE);
+    for (int bucket = 0; bucket < LdapHistogram.bucket(Long.MAX_VALUE); bucket++) {
+      assertThat(LdapHistogram.bucket(LdapHistogram.highestValue(bucket))).isEqualTo(bucket);
+      assertThat(LdapHistogram.bucket(LdapHistogram.highestValue(bucket) + 1)).isEqualTo(bucket + 1);
+    }
+  }
+
+  @Test
+  public void shouldReset() {
+    LdapHistogram histogram = new LdapHistogram();
+    histogram.record(-5);
+    histogram.record(100);
+    histogram.reset();
+
+    assertThat(histogram.getCount()).isZero();
+    assertThat(histogram.getMax()).isZero();
+    assertThat(histogram.getPercentile(50)).isZero();
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginException;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class LdapKerberosSubjectTest {
+
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+  private static final int RENEWABLE = 8;
+
+  @Test
+  public void shouldReuseSubject() throws Exception {
+    AtomicInteger logins = new AtomicInteger();
+    LdapKerberosSubject kerberosSubject = new LdapKerberosSubject("example", () -> {
+      logins.incrementAndGet();
+      return subject(ticket(System.currentTimeMillis(), HOUR, false));
+    });
+
+    Subject subject = kerberosSubject.getSubject();
+    assertThat(kerberosSubject.getSubject()).isSameAs(subject);
+    assertThat(logins.get()).isEqualTo(1);
+    assertThat(kerberosSubject.getLogins()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldLoginAgainWhenTicketIsAboutToExpire() throws Exception {
+    LdapKerberosSubject kerberosSubject = new LdapKerberosSubject("example",
+      // 90% of the lifetime elapsed
+      () -> subject(ticket(System.currentTimeMillis() - 9 * HOUR, 10 * HOUR, false)));
+
+    Subject subject = kerberosSubject.getSubject();
+    assertThat(kerberosSubject.getSubject()).isNotSameAs(subject);
+    assertThat(kerberosSubject.getLogins()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldLoginAgainIntoNewSubjectWhenTicketIsRenewable() throws Exception {
+    long start = System.currentTimeMillis() - 9 * HOUR;
+    LdapKerberosSubject kerberosSubject = new LdapKerberosSubject("example", () -> subject(ticket(start, 10 * HOUR, true)));
+
+    Subject subject = kerberosSubject.getSubject();
+    KerberosTicket tgt = subject.getPrivateCredentials(KerberosTicket.class).iterator().next();
+
+    assertThat(kerberosSubject.getSubject()).isNotSameAs(subject);
+    assertThat(kerberosSubject.getLogins()).isEqualTo(2);
+    // the previous subject may still be used by connections being opened
+    assertThat(subject.getPrivateCredentials(KerberosTicket.class)).containsOnly(tgt);
+    assertThat(tgt.getEndTime()).isEqualTo(new Date(start + 10 * HOUR));
+  }
+
+  @Test
+  public void shouldLoginAgainWithoutTicket() throws Exception {
+    LdapKerberosSubject kerberosSubject = new LdapKerberosSubject("example", Subject::new);
+
+    Subject subject = kerberosSubject.getSubject();
+    assertThat(kerberosSubject.getSubject()).isSameAs(subject);
+    kerberosSubject.invalidate();
+    assertThat(kerberosSubject.getSubject()).isNotSameAs(subject);
+  }
+
+  @Test
+  public void shouldPropagateLoginFailure() {
+    LdapKerberosSubject kerberosSubject = new LdapKerberosSubject("example", () -> {
+      throw new LoginException("Integrity check on decrypted field failed");
+    });
+
+    try {
+      kerberosSubject.getSubject();
+      fail();
+    } catch (LoginException e) {
+      assertThat(e.getMessage()).isEqualTo("Integrity check on decrypted field failed");
+    }
+  }
+
+  @Test
+  public void shouldLoginOnceForConcurrentCallers() throws Exception {
+    AtomicInteger logins = new AtomicInteger();
+    LdapKerberosSubject kerberosSubject = new LdapKerberosSubject("example", () -> {
+      logins.incrementAndGet();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return subject(ticket(System.currentTimeMillis(), HOUR, false));
+    });
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Subject>> subjects = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        subjects.add(executor.submit((Callable<Subject>) kerberosSubject::getSubject));
+      }
+      Subject first = subjects.get(0).get();
+      for (Future<Subject> subject : subjects) {
+        assertThat(subject.get()).isSameAs(first);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(logins.get()).isEqualTo(1);
+  }
+
+  private static Subject subject(KerberosTicket tgt) {
+    Subject subject = new Subject();
+    subject.getPrivateCredentials().add(tgt);
+    return subject;
+  }
+
+  private static KerberosTicket ticket(long start, long lifetime, boolean renewable) {
+    boolean[] flags = new boolean[32];
+    flags[RENEWABLE] = renewable;
+    return new KerberosTicket(new byte[] {0}, new KerberosPrincipal("sonarqube@EXAMPLE.ORG"), new KerberosPrincipal("krbtgt/EXAMPLE.ORG@EXAMPLE.ORG"),
+      new byte[16], 17, flags, new Date(start), new Date(start), new Date(start + lifetime), renewable ? new Date(start + 100 * lifetime) : null, null);
+  }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LdapKerberosVerifierTest {
+
+  @Test
+  public void shouldCheckPassword() throws Exception {
+    LoginContext lc = mock(LoginContext.class);
+    when(lc.getSubject()).thenReturn(new Subject());
+    LdapMetrics metrics = new LdapMetrics();
+    LdapKerberosVerifier verifier = new LdapKerberosVerifier("example", (principal, password) -> {
+      if (!"user_password".equals(password)) {
+        throw new LoginException("Integrity check on decrypted field failed");
+      }
+      return lc;
+    }, 2, 0, 10, 10_000, null, null, metrics);
+
+    assertThat(verifier.verify("godin@EXAMPLE.ORG", "user_password")).isTrue();
+    assertThat(verifier.verify("godin@EXAMPLE.ORG", "wrong_user_password")).isFalse();
+    verify(lc).logout();
+    assertThat(metrics.get(LdapMetrics.Operation.KERBEROS_LOGIN).getSuccessCount()).isEqualTo(1);
+    assertThat(metrics.get(LdapMetrics.Operation.KERBEROS_LOGIN).getFailureCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldGiveUpAfterTimeout() throws Exception {
+    CountDownLatch kdc = new CountDownLatch(1);
+    LdapMetrics metrics = new LdapMetrics();
+    LdapKerberosVerifier verifier = new LdapKerberosVerifier("example", (principal, password) -> {
+      awaitQuietly(kdc);
+      throw new LoginException("Cannot contact any KDC");
+    }, 1, 0, 10, 50, null, null, metrics);
+
+    assertThat(verifier.verify("godin@EXAMPLE.ORG", "user_password")).isFalse();
+    assertThat(verifier.getTimeouts()).isEqualTo(1);
+    assertThat(metrics.get(LdapMetrics.Operation.KERBEROS_LOGIN).getTimeoutCount()).isEqualTo(1);
+    kdc.countDown();
+  }
+
+  @Test
+  public void shouldRejectLoginsWhenQueueIsFull() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch kdc = new CountDownLatch(1);
+    LdapKerberosVerifier verifier = new LdapKerberosVerifier("example", (principal, password) -> {
+      started.countDown();
+      awaitQuietly(kdc);
+      throw new LoginException("Cannot contact any KDC");
+    }, 1, 2, 1, 10_000, null, null, new LdapMetrics());
+    ExecutorService logins = Executors.newFixedThreadPool(2);
+    try {
+      // one login running, one waiting
+      logins.submit(() -> verifier.verify("godin@EXAMPLE.ORG", "user_password"));
+      started.await(10, TimeUnit.SECONDS);
+      logins.submit(() -> verifier.verify("tester@EXAMPLE.ORG", "user_password"));
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (verifier.getPendingLogins() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+
+      assertThat(verifier.verify("robby@INFOSUPPORT.COM", "user_password")).isFalse();
+      assertThat(verifier.getRejections()).isEqualTo(1);
+    } finally {
+      kdc.countDown();
+      logins.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shouldLimitConcurrentLoginsPerRealm() throws Exception {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    LoginContext lc = mock(LoginContext.class);
+    LdapKerberosVerifier verifier = new LdapKerberosVerifier("example", (principal, password) -> {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      running.decrementAndGet();
+      return lc;
+    }, 4, 2, 100, 10_000, null, null, new LdapMetrics());
+    ExecutorService logins = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        results.add(logins.submit(() -> verifier.verify("godin@EXAMPLE.ORG", "user_password")));
+      }
+      for (Future<Boolean> result : results) {
+        assertThat(result.get()).isTrue();
+      }
+    } finally {
+      logins.shutdownNow();
+    }
+    assertThat(maxRunning.get()).isLessThanOrEqualTo(2);
+  }
+
+  @Test
+  public void slowRealmShouldNotStarveOtherRealms() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch kdc = new CountDownLatch(1);
+    LoginContext lc = mock(LoginContext.class);
+    LdapKerberosVerifier verifier = new LdapKerberosVerifier("example", (principal, password) -> {
+      if (principal.endsWith("@EXAMPLE.ORG")) {
+        started.countDown();
+        awaitQuietly(kdc);
+      }
+      return lc;
+    }, 2, 1, 10, 5_000, null, null, new LdapMetrics());
+    ExecutorService logins = Executors.newFixedThreadPool(2);
+    try {
+      // one login running, the other one waiting for the permit of the slow realm without holding a thread
+      logins.submit(() -> verifier.verify("godin@EXAMPLE.ORG", "user_password"));
+      started.await(10, TimeUnit.SECONDS);
+      logins.submit(() -> verifier.verify("tester@EXAMPLE.ORG", "user_password"));
+
+      assertThat(verifier.verify("robby@INFOSUPPORT.COM", "user_password")).isTrue();
+      assertThat(verifier.getTimeouts()).isZero();
+    } finally {
+      kdc.countDown();
+      logins.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shouldRejectLoginsWhenRealmIsBusy() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch kdc = new CountDownLatch(1);
+    LdapKerberosVerifier verifier = new LdapKerberosVerifier("example", (principal, password) -> {
+      started.countDown();
+      awaitQuietly(kdc);
+      throw new LoginException("Cannot contact any KDC");
+    }, 2, 1, 10, 50, null, null, new LdapMetrics());
+    ExecutorService logins = Executors.newSingleThreadExecutor();
+    try {
+      logins.submit(() -> verifier.verify("godin@EXAMPLE.ORG", "user_password"));
+      started.await(10, TimeUnit.SECONDS);
+
+      assertThat(verifier.verify("tester@EXAMPLE.ORG", "user_password")).isFalse();
+      assertThat(verifier.getRejections()).isEqualTo(1);
+    } finally {
+      kdc.countDown();
+      logins.shutdownNow();
+    }
+  }
+
+  @Test
+  public void servicePrincipalRequiresKeyTab() {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.kerberos.verify.servicePrincipal", "HTTP/sonar.example.org@EXAMPLE.ORG");
+    try {
+      new LdapKerberosVerifier(settings, "ldap", "example", new Krb5LoginConfiguration(), new LdapMetrics());
+      fail("Expected LdapException");
+    } catch (LdapException e) {
+      assertThat(e.getMessage()).contains("ldap.kerberos.verify.serviceKeyTab");
+    }
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
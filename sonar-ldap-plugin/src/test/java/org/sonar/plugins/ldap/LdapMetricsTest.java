@@ -0,0 +1,106 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class LdapMetricsTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void shouldRecordSearches() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().values().iterator().next();
+    LdapUserMapping userMapping = settingsManager.getUserMappings().values().iterator().next();
+    LdapMetrics metrics = contextFactory.getMetrics();
+
+    assertThat(userMapping.createSearch(contextFactory, "godin").findUnique()).isNotNull();
+    assertThat(userMapping.createSearch(contextFactory, "notfound").findUnique()).isNull();
+
+    LdapOperationMetricsMXBean userSearches = metrics.get(LdapMetrics.Operation.USER_SEARCH);
+    assertThat(userSearches.getSuccessCount()).isEqualTo(1);
+    assertThat(userSearches.getNotFoundCount()).isEqualTo(1);
+    assertThat(userSearches.getResultSizeMax()).isEqualTo(1);
+    assertThat(userSearches.getLatencyMax()).isPositive();
+    assertThat(metrics.get(LdapMetrics.Operation.GROUP_SEARCH).getSuccessCount()).isZero();
+  }
+
+  @Test
+  public void shouldRecordBinds() throws Exception {
+    LdapContextFactory contextFactory = new LdapContextFactory(new TestConfiguration(), "ldap", server.getUrl());
+
+    ContextHelper.closeQuietly(contextFactory.createUserContext("uid=godin,ou=users,dc=example,dc=org", "secret1"));
+    try {
+      contextFactory.createUserContext("uid=godin,ou=users,dc=example,dc=org", "wrong");
+      fail("Expected NamingException");
+    } catch (NamingException e) {
+      // expected
+    }
+
+    LdapOperationMetricsMXBean userBinds = contextFactory.getMetrics().get(LdapMetrics.Operation.USER_BIND);
+    assertThat(userBinds.getSuccessCount()).isEqualTo(1);
+    assertThat(userBinds.getFailureCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldDetectTimeouts() {
+    CommunicationException connectTimeout = new CommunicationException("connect timed out");
+    connectTimeout.setRootCause(new SocketTimeoutException());
+
+    assertThat(LdapMetrics.isTimeout(connectTimeout)).isTrue();
+    assertThat(LdapMetrics.isTimeout(new TimeLimitExceededException())).isTrue();
+    assertThat(LdapMetrics.isTimeout(new NamingException("LDAP response read timed out, timeout used:100ms."))).isTrue();
+    assertThat(LdapMetrics.isTimeout(new CommunicationException("Connection refused"))).isFalse();
+  }
+
+  @Test
+  public void shouldExposeThroughJmx() throws Exception {
+    LdapMetrics metrics = new LdapMetrics();
+    metrics.record(LdapMetrics.Operation.GROUP_SEARCH, LdapMetrics.Outcome.SUCCESS, System.nanoTime(), 3);
+    metrics.register("jmx-test");
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sonar.plugins.ldap:type=Operation,server=jmx-test,operation=groupSearch");
+
+      assertThat(mbeanServer.getAttribute(name, "SuccessCount")).isEqualTo(1L);
+      assertThat(mbeanServer.getAttribute(name, "ResultSizeMax")).isEqualTo(3L);
+      mbeanServer.invoke(name, "reset", null, null);
+      assertThat(metrics.get(LdapMetrics.Operation.GROUP_SEARCH).getSuccessCount()).isZero();
+    } finally {
+      metrics.unregister();
+    }
+    assertThat(ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("org.sonar.plugins.ldap:server=jmx-test,*"), null)).isEmpty();
+  }
+
+}
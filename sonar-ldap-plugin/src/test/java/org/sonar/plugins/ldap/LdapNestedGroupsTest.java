@@ -0,0 +1,117 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LdapNestedGroupsTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/nested-groups.example.org.ldif");
+
+  @Test
+  public void directGroupsByDefault() {
+    LdapGroupsProvider groupsProvider = newGroupsProvider(newSettings());
+
+    assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-developers");
+  }
+
+  @Test
+  public void clientSideExpansion() {
+    TestConfiguration settings = newSettings()
+      .setProperty("ldap.group.nested", "clientSide")
+      .setProperty("ldap.group.nested.memberAttribute", "uniqueMember");
+    LdapGroupsProvider groupsProvider = newGroupsProvider(settings);
+
+    assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-developers", "sonar-users", "all-staff");
+    // all-staff is member of sonar-developers, which is member of sonar-users
+    assertThat(groupsProvider.getGroups("tester")).containsOnly("sonar-users", "all-staff", "sonar-developers");
+  }
+
+  @Test
+  public void clientSideExpansionShouldStopAtMaxDepth() {
+    TestConfiguration settings = newSettings()
+      .setProperty("ldap.group.nested", "clientSide")
+      .setProperty("ldap.group.nested.memberAttribute", "uniqueMember")
+      .setProperty("ldap.group.nested.maxDepth", "1");
+    LdapGroupsProvider groupsProvider = newGroupsProvider(settings);
+
+    assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-developers", "sonar-users");
+  }
+
+  @Test
+  public void inChainShouldUseMatchingRule() throws Exception {
+    TestConfiguration settings = newSettings().setProperty("ldap.group.nested", "inChain");
+    LdapGroupMapping groupMapping = new LdapGroupMapping(settings, "ldap");
+    assertThat(groupMapping.getNestedGroups()).isEqualTo(LdapGroupMapping.NestedGroups.IN_CHAIN);
+
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    InitialDirContext context = mock(InitialDirContext.class);
+    when(contextFactory.borrowBindContext()).thenReturn(context);
+    when(contextFactory.getMetrics()).thenReturn(new LdapMetrics());
+    NamingEnumeration<SearchResult> result = mock(NamingEnumeration.class);
+    when(context.search(any(String.class), any(String.class), any(Object[].class), any(SearchControls.class))).thenReturn(result);
+    SearchResult user = new SearchResult("uid=godin", null, null);
+    user.setNameInNamespace("uid=godin,ou=users,dc=example,dc=org");
+
+    LdapNestedGroups nestedGroups = new LdapNestedGroups(Collections.singletonMap("ldap", contextFactory), Collections.singletonMap("ldap", groupMapping));
+    Set<String> groups = new HashSet<>();
+    LdapSession session = new LdapSession();
+    nestedGroups.findInChain(session, "ldap", user, groups);
+    session.close();
+
+    verify(context).search(eq("ou=groups,dc=example,dc=org"), eq("(member:1.2.840.113556.1.4.1941:={0})"),
+      eq(new Object[] {"uid=godin,ou=users,dc=example,dc=org"}), any(SearchControls.class));
+    assertThat(groups).isEmpty();
+  }
+
+  @Test(expected = LdapException.class)
+  public void invalidStrategy() {
+    new LdapGroupMapping(newSettings().setProperty("ldap.group.nested", "recursive"), "ldap");
+  }
+
+  private static TestConfiguration newSettings() {
+    return LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null);
+  }
+
+  private static LdapGroupsProvider newGroupsProvider(TestConfiguration settings) {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    Map<String, LdapContextFactory> contextFactories = settingsManager.getContextFactories();
+    return new LdapGroupsProvider(contextFactories, settingsManager.getUserMappings(), settingsManager.getGroupMappings());
+  }
+
+}
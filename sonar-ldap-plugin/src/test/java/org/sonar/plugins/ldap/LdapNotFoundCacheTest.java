@@ -0,0 +1,87 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapNotFoundCacheTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void disabledByDefault() {
+    LdapNotFoundCache cache = new LdapNotFoundCache(new TestConfiguration());
+    cache.putNotFound("example", "admin");
+
+    assertThat(cache.isEnabled()).isFalse();
+    assertThat(cache.isNotFound("example", "admin")).isFalse();
+    assertThat(cache.getHits()).isZero();
+    assertThat(cache.getMisses()).isZero();
+  }
+
+  @Test
+  public void shouldCountHitsAndMisses() {
+    LdapNotFoundCache cache = new LdapNotFoundCache(new TestConfiguration().setProperty("ldap.notFoundCache.ttl", "60000"));
+
+    assertThat(cache.isNotFound("example", "admin")).isFalse();
+    cache.putNotFound("example", "admin");
+    assertThat(cache.isNotFound("example", "admin")).isTrue();
+    assertThat(cache.isNotFound("infosupport", "admin")).isFalse();
+    cache.invalidate("example", "admin");
+    assertThat(cache.isNotFound("example", "admin")).isFalse();
+
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldExpireAndEvict() throws InterruptedException {
+    LdapNotFoundCache cache = new LdapNotFoundCache(1, 2);
+    cache.putNotFound("example", "admin");
+    Thread.sleep(10);
+    assertThat(cache.isNotFound("example", "admin")).isFalse();
+
+    cache = new LdapNotFoundCache(60_000, 2);
+    cache.putNotFound("example", "a");
+    cache.putNotFound("example", "b");
+    cache.putNotFound("example", "c");
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.isNotFound("example", "a")).isFalse();
+  }
+
+  @Test
+  public void shouldSkipSearchOfRecentlyNotFoundLogin() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null)
+      .setProperty("ldap.notFoundCache.ttl", "60000"), new LdapAutodiscovery());
+    LdapUsersProvider usersProvider = new LdapUsersProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(),
+      new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings(), settingsManager.getNotFoundCache()));
+
+    assertThat(usersProvider.getUserDetails("notfound")).isNull();
+    assertThat(usersProvider.getUserDetails("godin")).isNotNull();
+    assertThat(usersProvider.getUserDetails("notfound")).isNull();
+    assertThat(settingsManager.getNotFoundCache().getHits()).isEqualTo(1);
+  }
+
+}
@@ -48,6 +48,22 @@ public class LdapRealmTest {
     assertThat(realm.getGroupsProvider()).isNull();
   }
 
+  @Test
+  public void stop() {
+    Configuration settings = new TestConfiguration().setProperty("ldap.url", server.getUrl())
+      .setProperty("ldap.group.baseDn", "ou=groups,dc=example,dc=org")
+      .setProperty("ldap.group.index.enabled", "true");
+    LdapRealm realm = new LdapRealm(new LdapSettingsManager(settings, new LdapAutodiscovery()));
+    // not initialized yet
+    realm.stop();
+
+    realm.init();
+    realm.stop();
+
+    assertThat(realm.getUsersProvider().doGetUserDetails(new ExternalUsersProvider.Context("godin", Mockito.mock(HttpServletRequest.class))).getEmail())
+      .isEqualTo("godin@example.org");
+  }
+
   @Test
   public void noConnection() {
     Configuration settings = new TestConfiguration() //
@@ -23,15 +23,25 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Map;
 import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.sonar.plugins.ldap.server.LdapServer;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class LdapSearchTest {
 
@@ -107,6 +117,86 @@ public class LdapSearchTest {
     assertThat(search.findUnique()).isNotNull();
   }
 
+  @Test
+  public void findUniqueShouldNotChangeCountLimit() throws Exception {
+    LdapSearch search = new LdapSearch(contextFactories.values().iterator().next())
+      .setBaseDn("dc=example,dc=org")
+      .setRequest("(objectClass={0})")
+      .setParameters("inetOrgPerson");
+    assertThat(search.getCountLimit()).isZero();
+
+    try {
+      search.findUnique();
+    } catch (NamingException e) {
+      assertThat(e.getMessage()).startsWith("Non unique result");
+    }
+    assertThat(search.getCountLimit()).isZero();
+    assertThat(enumerationToArrayList(search.find()).size()).isEqualTo(3);
+  }
+
+  @Test
+  public void pagedSearch() throws Exception {
+    LdapContextFactory contextFactory = contextFactories.values().iterator().next();
+    LdapSearch search = new LdapSearch(contextFactory)
+      .setBaseDn("dc=example,dc=org")
+      .setRequest("(objectClass={0})")
+      .setParameters("inetOrgPerson")
+      .setPageSize(1);
+
+    assertThat(search.getPageSize()).isEqualTo(1);
+    assertThat(enumerationToArrayList(search.find()).size()).isEqualTo(3);
+
+    // paged results control is not kept by the pooled context
+    LdapSearch unpaged = new LdapSearch(contextFactory)
+      .setBaseDn("dc=example,dc=org")
+      .setRequest("(objectClass={0})")
+      .setParameters("inetOrgPerson");
+    assertThat(enumerationToArrayList(unpaged.find()).size()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldApplySearchTimeLimit() throws Exception {
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    InitialDirContext context = mock(InitialDirContext.class);
+    when(contextFactory.borrowBindContext()).thenReturn(context);
+    when(contextFactory.getSearchTimeLimit()).thenReturn(1000);
+    when(contextFactory.getMetrics()).thenReturn(new LdapMetrics());
+
+    new LdapSearch(contextFactory).setBaseDn("dc=example,dc=org").setRequest("(uid={0})").setParameters("godin").find();
+
+    ArgumentCaptor<SearchControls> controls = ArgumentCaptor.forClass(SearchControls.class);
+    verify(context).search(eq("dc=example,dc=org"), eq("(uid={0})"), eq(new Object[] {"godin"}), controls.capture());
+    assertThat(controls.getValue().getTimeLimit()).isEqualTo(1000);
+  }
+
+  @Test
+  public void readTimeoutShouldSurfaceAsTimeLimitExceeded() throws Exception {
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    InitialDirContext context = mock(InitialDirContext.class);
+    when(contextFactory.borrowBindContext()).thenReturn(context);
+    LdapMetrics metrics = new LdapMetrics();
+    when(contextFactory.getMetrics()).thenReturn(metrics);
+    when(context.search(anyString(), anyString(), any(Object[].class), any(SearchControls.class)))
+      .thenThrow(new NamingException("LDAP response read timed out, timeout used:100ms."));
+
+    try {
+      new LdapSearch(contextFactory).setBaseDn("dc=example,dc=org").setRequest("(uid={0})").setParameters("godin").find();
+      fail("Expected TimeLimitExceededException");
+    } catch (TimeLimitExceededException e) {
+      assertThat(e.getMessage()).startsWith("LDAP response read timed out");
+    }
+    verify(contextFactory).releaseBindContext(context, true);
+    assertThat(metrics.get(LdapMetrics.Operation.SEARCH).getTimeoutCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldReadTimeoutsFromSettings() {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.searchTimeLimit", "500");
+    assertThat(new LdapContextFactory(settings, "ldap", server.getUrl()).getSearchTimeLimit()).isEqualTo(500);
+    assertThat(new LdapContextFactory(new TestConfiguration(), "ldap", server.getUrl()).getSearchTimeLimit()).isEqualTo(30_000);
+  }
+
   private static <E> ArrayList<E> enumerationToArrayList(Enumeration<E> enumeration) {
     ArrayList<E> result = new ArrayList<>();
     while (enumeration.hasMoreElements()) {
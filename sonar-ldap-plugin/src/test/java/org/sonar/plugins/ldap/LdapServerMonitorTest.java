@@ -0,0 +1,92 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class LdapServerMonitorTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void shouldExposePoolAndCaches() throws Exception {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.pool.prefSize", "2")
+      .setProperty("ldap.authenticationCache.ttl", "60000");
+    LdapContextFactory contextFactory = new LdapContextFactory(settings, "ldap", server.getUrl());
+    LdapCredentialCache credentialCache = new LdapCredentialCache(settings);
+    credentialCache.put("monitor-test", "godin", "secret1");
+    credentialCache.matches("monitor-test", "godin", "secret1");
+    LdapServerMonitor monitor = new LdapServerMonitor("monitor-test", contextFactory, credentialCache, new LdapNotFoundCache(settings),
+      new LdapUserCache(settings), new LdapGroupCache(settings));
+
+    monitor.register();
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sonar.plugins.ldap:type=Server,server=monitor-test");
+      assertThat(monitor.getObjectName()).isEqualTo(name);
+
+      assertThat(mbeanServer.invoke(name, "warm", new Object[] {5}, new String[] {int.class.getName()})).isEqualTo(2);
+      assertThat(mbeanServer.getAttribute(name, "IdleConnections")).isEqualTo(2);
+      assertThat(mbeanServer.getAttribute(name, "CreatedConnections")).isEqualTo(2L);
+      assertThat((Double) mbeanServer.getAttribute(name, "AverageConnectTime")).isPositive();
+      assertThat(mbeanServer.getAttribute(name, "CredentialCacheHitRatio")).isEqualTo(1.0);
+      assertThat(mbeanServer.getAttribute(name, "UserCacheHitRatio")).isEqualTo(0.0);
+      assertThat(mbeanServer.getAttribute(name, "CircuitState")).isEqualTo("CLOSED");
+
+      assertThat(mbeanServer.invoke(name, "drain", null, null)).isEqualTo(2);
+      assertThat(monitor.getIdleConnections()).isZero();
+      assertThat(monitor.getDestroyedConnections()).isEqualTo(2);
+
+      mbeanServer.invoke(name, "reset", null, null);
+      assertThat(monitor.getCreatedConnections()).isZero();
+      assertThat(monitor.getDestroyedConnections()).isZero();
+    } finally {
+      monitor.unregister();
+    }
+    assertThat(monitor.getObjectName()).isNull();
+  }
+
+  @Test
+  public void shouldFailToManageDisabledPool() {
+    TestConfiguration settings = new TestConfiguration().setProperty("ldap.pool.enabled", "false");
+    LdapServerMonitor monitor = new LdapServerMonitor("example", new LdapContextFactory(settings, "ldap", server.getUrl()),
+      new LdapCredentialCache(settings), new LdapNotFoundCache(settings), new LdapUserCache(settings), new LdapGroupCache(settings));
+
+    assertThat(monitor.isPoolEnabled()).isFalse();
+    assertThat(monitor.getActiveConnections()).isZero();
+    try {
+      monitor.drain();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("LDAP connection pool is disabled for example");
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchResult;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LdapSessionTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void shouldBorrowOneContextPerServer() throws Exception {
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    InitialDirContext context = mock(InitialDirContext.class);
+    when(contextFactory.borrowBindContext()).thenReturn(context);
+
+    LdapSession session = new LdapSession();
+    assertThat(session.getBindContext(contextFactory)).isSameAs(context);
+    assertThat(session.getBindContext(contextFactory)).isSameAs(context);
+    verify(contextFactory, times(1)).borrowBindContext();
+
+    session.close();
+    verify(contextFactory).releaseBindContext(context, false);
+  }
+
+  @Test
+  public void shouldReleaseInvalidatedContextAsBroken() throws Exception {
+    LdapContextFactory contextFactory = mock(LdapContextFactory.class);
+    InitialDirContext context = mock(InitialDirContext.class);
+    when(contextFactory.borrowBindContext()).thenReturn(context);
+
+    LdapSession session = new LdapSession();
+    session.getBindContext(contextFactory);
+    session.invalidate(contextFactory);
+    verify(contextFactory).releaseBindContext(context, true);
+
+    session.getBindContext(contextFactory);
+    verify(contextFactory, times(2)).borrowBindContext();
+  }
+
+  @Test
+  public void shouldShareContextBetweenUserAndGroupSearches() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    LdapContextFactory contextFactory = settingsManager.getContextFactories().values().iterator().next();
+    LdapUserMapping userMapping = settingsManager.getUserMappings().values().iterator().next();
+    LdapGroupMapping groupMapping = settingsManager.getGroupMappings().values().iterator().next();
+    LdapConnectionPool pool = contextFactory.getPool();
+
+    LdapSession session = new LdapSession();
+    try {
+      SearchResult user = userMapping.createSearch(contextFactory, "godin").setSession(session).findUnique();
+      assertThat(user).isNotNull();
+      assertThat(groupMapping.createSearch(contextFactory, user).setSession(session).find().hasMore()).isTrue();
+      assertThat(pool.getActiveCount()).isEqualTo(1);
+    } finally {
+      session.close();
+    }
+    assertThat(pool.getActiveCount()).isEqualTo(0);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+  }
+
+}
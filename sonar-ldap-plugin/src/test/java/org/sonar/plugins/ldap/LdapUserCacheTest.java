@@ -0,0 +1,122 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.api.security.UserDetails;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapUserCacheTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void disabledByDefault() {
+    LdapUserCache cache = new LdapUserCache(new TestConfiguration().setProperty("ldap.userCache.preWarm", "true"));
+    cache.put("example", "godin", user());
+
+    assertThat(cache.isEnabled()).isFalse();
+    assertThat(cache.isPreWarmEnabled()).isFalse();
+    assertThat(cache.get("example", "godin")).isNull();
+    assertThat(cache.getMisses()).isZero();
+  }
+
+  @Test
+  public void shouldCountHitsAndMisses() {
+    LdapUserCache cache = new LdapUserCache(new TestConfiguration().setProperty("ldap.userCache.ttl", "60000"));
+    SearchResult user = user();
+
+    assertThat(cache.get("example", "godin")).isNull();
+    cache.put("example", "godin", user);
+    assertThat(cache.get("example", "Godin")).isSameAs(user);
+    assertThat(cache.get("infosupport", "godin")).isNull();
+    cache.invalidate("example", "godin");
+    assertThat(cache.get("example", "godin")).isNull();
+
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldExpireAndEvict() throws InterruptedException {
+    LdapUserCache cache = new LdapUserCache(1, 2, false);
+    cache.put("example", "godin", user());
+    Thread.sleep(10);
+    assertThat(cache.get("example", "godin")).isNull();
+
+    cache = new LdapUserCache(60_000, 2, false);
+    cache.put("example", "a", user());
+    cache.put("example", "b", user());
+    cache.put("example", "c", user());
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get("example", "a")).isNull();
+  }
+
+  @Test
+  public void shouldSkipSearchOfCachedUser() {
+    LdapSettingsManager settingsManager = newSettingsManager();
+    LdapUsersProvider usersProvider = new LdapUsersProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(), newUserLookup(settingsManager));
+
+    assertThat(usersProvider.getUserDetails("godin").getEmail()).isEqualTo("godin@example.org");
+    LdapUserLookup otherLookup = newUserLookup(settingsManager);
+    usersProvider = new LdapUsersProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(), otherLookup);
+    UserDetails details = usersProvider.getUserDetails("godin");
+
+    assertThat(details.getEmail()).isEqualTo("godin@example.org");
+    assertThat(settingsManager.getUserCache().getHits()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldPreWarmAllUsers() throws Exception {
+    LdapSettingsManager settingsManager = newSettingsManager();
+    LdapUserLookup userLookup = newUserLookup(settingsManager);
+    String serverKey = settingsManager.getUserMappings().keySet().iterator().next();
+
+    // godin, tester and without_email, not the bind user which is not an inetOrgPerson
+    assertThat(userLookup.preWarm(serverKey)).isEqualTo(3);
+
+    SearchResult godin = settingsManager.getUserCache().get(serverKey, "godin");
+    assertThat(godin.getNameInNamespace()).isEqualToIgnoringCase("cn=Evgeny Mandrikov,ou=users,dc=example,dc=org");
+    assertThat(godin.getAttributes().get("mail").get()).isEqualTo("godin@example.org");
+    assertThat(userLookup.find(new LdapSession(), serverKey, "tester")).isNotNull();
+    assertThat(settingsManager.getUserCache().getMisses()).isZero();
+  }
+
+  private static SearchResult user() {
+    return new SearchResult("uid=godin", null, new BasicAttributes(true));
+  }
+
+  private static LdapSettingsManager newSettingsManager() {
+    return new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null)
+      .setProperty("ldap.userCache.ttl", "60000"), new LdapAutodiscovery());
+  }
+
+  private static LdapUserLookup newUserLookup(LdapSettingsManager settingsManager) {
+    return new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings(),
+      settingsManager.getNotFoundCache(), settingsManager.getUserCache(), 0);
+  }
+
+}
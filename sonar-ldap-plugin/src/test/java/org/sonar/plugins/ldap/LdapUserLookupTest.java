@@ -0,0 +1,108 @@
+/*
+ * SonarQube LDAP Plugin
+ * Copyright (C) 2009-2021 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.ldap;
+
+import java.util.Map;
+import javax.naming.directory.SearchResult;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.sonar.plugins.ldap.server.LdapServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LdapUserLookupTest {
+
+  @ClassRule
+  public static LdapServer server = new LdapServer("/users.example.org.ldif");
+
+  @Test
+  public void shouldReturnAttributesOfAllProviders() {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null)
+      .setProperty("ldap.group.request", "(&(objectClass=posixGroup)(memberUid={uid}))"), new LdapAutodiscovery());
+    LdapUserLookup userLookup = new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings());
+
+    assertThat(userLookup.getReturningAttributes("<default>")).containsExactly("mail", "cn", "uid");
+  }
+
+  @Test
+  public void shouldSearchOncePerLogin() throws Exception {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    LdapUserLookup userLookup = new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings());
+    SearchResult godin;
+    LdapSession session = new LdapSession();
+    try {
+      godin = userLookup.find(session, "<default>", "godin");
+      assertThat(godin).isNotNull();
+      assertThat(godin.getAttributes().get("mail").get()).isEqualTo("godin@example.org");
+      assertThat(userLookup.find(session, "<default>", "notfound")).isNull();
+      assertThat(userLookup.find(session, "<default>", "godin")).isSameAs(godin);
+    } finally {
+      session.close();
+    }
+
+    // next call of the same login
+    LdapSession otherSession = new LdapSession();
+    try {
+      assertThat(userLookup.find(otherSession, "<default>", "godin")).isSameAs(godin);
+      userLookup.forget("<default>", "godin");
+    } finally {
+      otherSession.close();
+    }
+
+    LdapSession lastSession = new LdapSession();
+    try {
+      assertThat(userLookup.find(lastSession, "<default>", "godin")).isNotSameAs(godin);
+    } finally {
+      lastSession.close();
+    }
+  }
+
+  @Test
+  public void loginShouldSearchUserOnce() {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    Map<String, LdapContextFactory> contextFactories = settingsManager.getContextFactories();
+    LdapUserLookup userLookup = new LdapUserLookup(contextFactories, settingsManager.getUserMappings(), settingsManager.getGroupMappings());
+    LdapAuthenticator authenticator = new LdapAuthenticator(contextFactories, settingsManager.getUserMappings(), userLookup);
+    LdapUsersProvider usersProvider = new LdapUsersProvider(contextFactories, settingsManager.getUserMappings(), userLookup);
+    LdapGroupsProvider groupsProvider = new LdapGroupsProvider(contextFactories, settingsManager.getUserMappings(), settingsManager.getGroupMappings(), userLookup);
+
+    assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+    assertThat(usersProvider.getUserDetails("godin").getEmail()).isEqualTo("godin@example.org");
+    assertThat(groupsProvider.getGroups("godin")).containsOnly("sonar-users", "sonar-developers");
+
+    LdapMetrics metrics = contextFactories.get("<default>").getMetrics();
+    assertThat(metrics.get(LdapMetrics.Operation.USER_SEARCH).getSuccessCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void rejectedPasswordShouldForgetUser() {
+    LdapSettingsManager settingsManager = new LdapSettingsManager(LdapSettingsFactory.generateSimpleAnonymousAccessSettings(server, null), new LdapAutodiscovery());
+    Map<String, LdapContextFactory> contextFactories = settingsManager.getContextFactories();
+    LdapUserLookup userLookup = new LdapUserLookup(contextFactories, settingsManager.getUserMappings(), settingsManager.getGroupMappings());
+    LdapAuthenticator authenticator = new LdapAuthenticator(contextFactories, settingsManager.getUserMappings(), userLookup);
+
+    assertThat(authenticator.authenticate("godin", "wrong")).isFalse();
+    assertThat(authenticator.authenticate("godin", "secret1")).isTrue();
+
+    LdapMetrics metrics = contextFactories.get("<default>").getMetrics();
+    assertThat(metrics.get(LdapMetrics.Operation.USER_SEARCH).getSuccessCount()).isEqualTo(2);
+  }
+
+}
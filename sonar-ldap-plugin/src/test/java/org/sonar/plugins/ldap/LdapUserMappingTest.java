@@ -19,6 +19,7 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.Arrays;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -32,6 +33,8 @@ public class LdapUserMappingTest {
     assertThat(userMapping.getRequest()).isEqualTo("(&(objectClass=inetOrgPerson)(uid={0}))");
     assertThat(userMapping.getRealNameAttribute()).isEqualTo("cn");
     assertThat(userMapping.getEmailAttribute()).isEqualTo("mail");
+    assertThat(userMapping.getLoginAttribute()).isEqualTo("uid");
+    assertThat(userMapping.getBatchSize()).isEqualTo(100);
 
     assertThat(userMapping.toString()).isEqualTo("LdapUserMapping{" +
       "baseDn=null," +
@@ -72,4 +75,28 @@ public class LdapUserMappingTest {
     assertThat(userMapping.getBaseDn()).isEqualTo("dc=example,dc=org");
   }
 
+  @Test
+  public void batchSearch() {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.user.baseDn", "cn=users")
+      .setProperty("ldap.user.request", "(&(objectClass=user)(sAMAccountName={login})(!(userAccountControl=514)))");
+
+    LdapUserMapping userMapping = new LdapUserMapping(settings, "ldap");
+    assertThat(userMapping.getLoginAttribute()).isEqualTo("sAMAccountName");
+    LdapSearch search = userMapping.createBatchSearch(null, Arrays.asList("tester", "godin"));
+    assertThat(search.getBaseDn()).isEqualTo("cn=users");
+    assertThat(search.getRequest()).isEqualTo("(&(objectClass=user)(|(sAMAccountName={0})(sAMAccountName={1}))(!(userAccountControl=514)))");
+    assertThat(search.getParameters()).isEqualTo(new String[] {"tester", "godin"});
+  }
+
+  @Test
+  public void noBatchSearchWhenLoginIsComparedToSeveralAttributes() {
+    TestConfiguration settings = new TestConfiguration()
+      .setProperty("ldap.user.request", "(|(uid={login})(mail={login}))");
+
+    LdapUserMapping userMapping = new LdapUserMapping(settings, "ldap");
+    assertThat(userMapping.getLoginAttribute()).isNull();
+    assertThat(userMapping.createBatchSearch(null, Arrays.asList("tester", "godin"))).isNull();
+  }
+
 }
@@ -19,8 +19,12 @@
  */
 package org.sonar.plugins.ldap;
 
+import java.util.Arrays;
+import java.util.Map;
 import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.security.UserDetails;
 import org.sonar.plugins.ldap.server.LdapServer;
@@ -42,6 +46,9 @@ public class LdapUsersProviderTest {
   @ClassRule
   public static LdapServer infosupportServer = new LdapServer(USERS_INFOSUPPORT_COM_LDIF, "infosupport.com", "dc=infosupport,dc=com");
 
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
   @Test
   public void test() throws Exception {
     Configuration settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, infosupportServer);
@@ -74,4 +81,76 @@ public class LdapUsersProviderTest {
     assertThat(details.getEmail()).isEqualTo("tester@infosupport.com");
   }
 
+  @Test
+  public void parallelLookupKeepsServersPrecedence() {
+    Configuration settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, infosupportServer)
+      .setProperty("ldap.parallelLookup.threads", "2");
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapUserLookup userLookup = new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings(),
+      settingsManager.getNotFoundCache(), settingsManager.getParallelLookupThreads());
+    LdapUsersProvider usersProvider = new LdapUsersProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(), userLookup);
+
+    UserDetails details;
+
+    // exists in both servers
+    details = usersProvider.getUserDetails("tester");
+    assertThat(details.getEmail()).isEqualTo("tester@example.org");
+
+    details = usersProvider.getUserDetails("robby");
+    assertThat(details.getEmail()).isEqualTo("rd@infosupport.com");
+
+    details = usersProvider.getUserDetails("notfound");
+    assertThat(details).isNull();
+  }
+
+  @Test
+  public void stoppedParallelLookupShouldSearchSequentially() {
+    Configuration settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, infosupportServer)
+      .setProperty("ldap.parallelLookup.threads", "2");
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapUserLookup userLookup = new LdapUserLookup(settingsManager.getContextFactories(), settingsManager.getUserMappings(), settingsManager.getGroupMappings(),
+      settingsManager.getNotFoundCache(), settingsManager.getParallelLookupThreads());
+    LdapUsersProvider usersProvider = new LdapUsersProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings(), userLookup);
+
+    userLookup.stop();
+
+    assertThat(usersProvider.getUserDetails("tester").getEmail()).isEqualTo("tester@example.org");
+    assertThat(usersProvider.getUserDetails("robby").getEmail()).isEqualTo("rd@infosupport.com");
+  }
+
+  @Test
+  public void batch() {
+    Configuration settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, infosupportServer)
+      .setProperty("ldap.example.user.batchSize", "2")
+      .setProperty("ldap.infosupport.user.batchSize", "2");
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapUsersProvider usersProvider = new LdapUsersProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings());
+
+    Map<String, UserDetails> details = usersProvider.getUserDetails(Arrays.asList("robby", "godin", "notfound", "Tester", "without_email", "*", "testerInfo"));
+
+    assertThat(details.keySet()).containsExactly("robby", "godin", "notfound", "Tester", "without_email", "*", "testerInfo");
+    assertThat(details.get("robby").getEmail()).isEqualTo("rd@infosupport.com");
+    assertThat(details.get("godin").getName()).isEqualTo("Evgeny Mandrikov");
+    assertThat(details.get("godin").getEmail()).isEqualTo("godin@example.org");
+    assertThat(details.get("Tester").getEmail()).isEqualTo("tester@example.org");
+    assertThat(details.get("without_email").getEmail()).isEqualTo("");
+    assertThat(details.get("testerInfo").getEmail()).isEqualTo("tester@infosupport.com");
+    assertThat(details.get("notfound")).isNull();
+    // escaped, not a wildcard
+    assertThat(details.get("*")).isNull();
+  }
+
+  @Test
+  public void batchShouldRejectLoginMatchingSeveralUsers() {
+    Configuration settings = LdapSettingsFactory.generateSimpleAnonymousAccessSettings(exampleServer, null)
+      .setProperty("ldap.user.request", "(&(objectClass=inetOrgPerson)(objectClass={login}))");
+    LdapSettingsManager settingsManager = new LdapSettingsManager(settings, new LdapAutodiscovery());
+    LdapUsersProvider usersProvider = new LdapUsersProvider(settingsManager.getContextFactories(), settingsManager.getUserMappings());
+
+    thrown.expect(LdapException.class);
+    thrown.expectMessage("Unable to retrieve details for users [person]: non unique result");
+
+    usersProvider.getUserDetails(Arrays.asList("person"));
+  }
+
 }